@@ -1,42 +1,93 @@
 package dev.rambris.tunnellen;
 
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.function.Consumer;
 
+/**
+ * Reads lines from a stream on a virtual thread and hands them to a consumer. Reads block until
+ * data is available and are decoded as UTF-8. The thread ends when the stream reaches EOF, which
+ * for a child process happens when it exits, or when {@link #stop()} is called.
+ */
 public class AsyncInputStreamReader {
-    private boolean running = true;
-    private Thread thread;
+    private static final Logger log = (Logger) LoggerFactory.getLogger(AsyncInputStreamReader.class);
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream is;
+    private final Consumer<String> consumer;
+    private final Thread thread;
+    private volatile boolean running = true;
+
     public AsyncInputStreamReader(InputStream is, Consumer<String> consumer) {
-        thread = Thread.ofVirtual()
-                .start(() -> {
-                    var buffer = new StringBuffer();
-                    try {
-                        while (running) {
-                            if(is.available()==0) {
-                                Thread.sleep(100);
-                                continue;
-                            }
-
-                            var b = is.read();
-
-                            if(b=='\n' || b=='\r' || b==-1 && !buffer.isEmpty()) {
-                                consumer.accept(buffer.toString());
-                                buffer.setLength(0);
-                            } else if(b==-1) {
-                                break;
-                            } else {
-                                buffer.append((char)b);
-                            }
-
-                        }
-                    } catch (Exception __) {
-                        __.printStackTrace();
-                    }
-                });
+        this.is = is;
+        this.consumer = consumer;
+        thread = Thread.ofVirtual().name("reader").start(this::read);
+    }
+
+    private void read() {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        var bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        var chars = CharBuffer.allocate(BUFFER_SIZE);
+        var line = new StringBuilder();
+
+        try (is) {
+            int n;
+            while (running && (n = is.read(bytes.array(), bytes.position(), bytes.remaining())) != -1) {
+                bytes.position(bytes.position() + n);
+                bytes.flip();
+                decoder.decode(bytes, chars, false);
+                // Keeps an incomplete multibyte sequence for the next read
+                bytes.compact();
+                emitLines(chars, line);
+            }
+            bytes.flip();
+            decoder.decode(bytes, chars, true);
+            decoder.flush(chars);
+            emitLines(chars, line);
+        } catch (IOException e) {
+            if (running) {
+                log.debug("Error reading stream: {}", e.getMessage());
+            }
+        }
+
+        if (!line.isEmpty()) {
+            consumer.accept(line.toString());
+        }
+    }
+
+    private void emitLines(CharBuffer chars, StringBuilder line) {
+        chars.flip();
+        while (chars.hasRemaining()) {
+            var c = chars.get();
+            if (c == '\n' || c == '\r') {
+                if (!line.isEmpty()) {
+                    consumer.accept(line.toString());
+                    line.setLength(0);
+                }
+            } else {
+                line.append(c);
+            }
+        }
+        chars.clear();
     }
 
     public void stop() {
         running = false;
+        try {
+            is.close();
+        } catch (IOException __) {
+            // The reader is ending anyway
+        }
         try {
             thread.join(200);
         } catch (InterruptedException e) {
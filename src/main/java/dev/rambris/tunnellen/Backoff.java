@@ -0,0 +1,54 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter between restarts of a failing tunnel. After
+ * {@link #MAX_FAILURES} consecutive failures the circuit opens and only one attempt is made per
+ * {@link #COOL_DOWN} until a restart sticks and {@link #reset()} is called.
+ */
+class Backoff {
+    private static final Duration INITIAL = Duration.ofSeconds(1);
+    private static final Duration MAX = Duration.ofMinutes(2);
+    private static final Duration COOL_DOWN = Duration.ofMinutes(5);
+    private static final int MAX_FAILURES = 8;
+
+    private final Duration initial;
+    private final Duration max;
+    private int failures = 0;
+
+    Backoff() {
+        this(INITIAL, MAX);
+    }
+
+    Backoff(Duration initial, Duration max) {
+        this.initial = initial;
+        this.max = max;
+    }
+
+    /**
+     * Records a failure and returns how long to wait before the next attempt.
+     */
+    synchronized Duration failure() {
+        failures++;
+        if (failures >= MAX_FAILURES) {
+            return COOL_DOWN;
+        }
+        var millis = Math.min(max.toMillis(), initial.toMillis() << (failures - 1));
+        // Equal jitter: at least half the delay, so attempts never bunch up at zero
+        return Duration.ofMillis(millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+    }
+
+    synchronized void reset() {
+        failures = 0;
+    }
+
+    synchronized boolean isOpen() {
+        return failures >= MAX_FAILURES;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+}
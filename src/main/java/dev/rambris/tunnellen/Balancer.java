@@ -0,0 +1,92 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forwards to several pods behind one target, one port-forward per pod on an ephemeral loopback
+ * port. The relay in front spreads connections over them. Pods are looked up again on every
+ * refresh, so pods that go away or stop being ready are dropped and new ones are picked up.
+ */
+class Balancer {
+    /**
+     * The forward to one pod.
+     */
+    record Leg(KubeClient.Endpoint endpoint, PortForward forward, InetSocketAddress address) {
+    }
+
+    private final Logger log;
+    private final String context;
+    private final String namespace;
+    private final String target;
+    private final String port;
+    private final int maxPods;
+    private List<Leg> legs = List.of();
+    private boolean closed = false;
+
+    /**
+     * @param namespace the namespace, or null for the namespace of the context
+     */
+    Balancer(Logger log, String context, String namespace, String target, String port, int maxPods) {
+        this.log = log;
+        this.context = context;
+        this.namespace = namespace;
+        this.target = target;
+        this.port = port;
+        this.maxPods = maxPods;
+    }
+
+    /**
+     * Looks up the ready pods and opens or closes forwards to match.
+     */
+    List<Leg> refresh() throws IOException {
+        // Not while locked, a blocked virtual thread would keep its carrier from the HTTP client
+        var client = KubeClient.forContext(context);
+        var endpoints = client.resolve(namespace != null ? namespace : client.defaultNamespace(), target, port, maxPods, true);
+        return apply(endpoints);
+    }
+
+    private synchronized List<Leg> apply(List<KubeClient.Endpoint> endpoints) throws IOException {
+        if (closed) {
+            return legs;
+        }
+        var next = new ArrayList<Leg>();
+        try {
+            for (var endpoint : endpoints) {
+                var leg = legs.stream().filter(l -> l.endpoint().equals(endpoint)).findFirst().orElse(null);
+                if (leg == null) {
+                    var forward = PortForward.toPod(log, context, namespace, endpoint, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                    leg = new Leg(endpoint, forward, new InetSocketAddress(InetAddress.getLoopbackAddress(), forward.open()));
+                    log.info("Forwarding to pod {} port {}", endpoint.pod(), endpoint.port());
+                }
+                next.add(leg);
+            }
+        } catch (IOException e) {
+            next.stream().filter(l -> !legs.contains(l)).forEach(l -> l.forward().close());
+            throw e;
+        }
+        for (var leg : legs) {
+            if (!next.contains(leg)) {
+                log.info("No longer forwarding to pod {}", leg.endpoint().pod());
+                leg.forward().close();
+            }
+        }
+        legs = List.copyOf(next);
+        return legs;
+    }
+
+    synchronized List<Leg> legs() {
+        return legs;
+    }
+
+    synchronized void close() {
+        closed = true;
+        legs.forEach(l -> l.forward().close());
+        legs = List.of();
+    }
+}
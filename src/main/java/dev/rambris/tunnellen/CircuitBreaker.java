@@ -0,0 +1,233 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an outage of one cluster from turning into a restart storm. When several tunnels of a
+ * context fail without any of them working in between, the circuit of the context opens and its
+ * tunnels wait instead of restarting. After a while one of them is let through as a probe: if it
+ * comes up the circuit closes and the others are restarted, otherwise the circuit opens again for
+ * longer, following a {@link Backoff} of its own.
+ * <p>
+ * A tunnel that works, whether it just came up or passed a check, closes the circuit.
+ */
+class CircuitBreaker {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final Executor VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private static final int THRESHOLD = 3;
+    private static final Duration INITIAL = Duration.ofSeconds(5);
+    private static final Duration MAX = Duration.ofMinutes(2);
+    private static final Duration PROBE_TIMEOUT = Duration.ofMinutes(1);
+
+    enum State {
+        CLOSED,
+        /** Tunnels wait until {@link #getRetryAt()} */
+        OPEN,
+        /** One tunnel is let through to see whether the context works again */
+        HALF_OPEN
+    }
+
+    private final String context;
+    private final Backoff backoff = new Backoff(INITIAL, MAX);
+    private final Set<Tunnel> failing = new HashSet<>();
+    // The restart of each waiting tunnel, in the order they started waiting
+    private final Map<Tunnel, Runnable> waiting = new LinkedHashMap<>();
+    private State state = State.CLOSED;
+    private Tunnel probe = null;
+    private Instant retryAt = null;
+    private long generation = 0;
+
+    private CircuitBreaker(String context) {
+        this.context = context;
+    }
+
+    static CircuitBreaker of(String context) {
+        return breakers.computeIfAbsent(context, CircuitBreaker::new);
+    }
+
+    /**
+     * The circuits of the contexts that have had tunnels, by context.
+     */
+    static Map<String, CircuitBreaker> all() {
+        return Map.copyOf(breakers);
+    }
+
+    /**
+     * Whether the tunnel may restart now. If not, the restart is run once the circuit lets the
+     * tunnel through.
+     */
+    synchronized boolean allow(Tunnel tunnel, Runnable restart) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && (probe == null || probe == tunnel)) {
+            probe(tunnel);
+            return true;
+        }
+        waiting.put(tunnel, restart);
+        return false;
+    }
+
+    void success() {
+        List<Runnable> restarts;
+        List<Tunnel> changed;
+        synchronized (this) {
+            failing.clear();
+            if (state == State.CLOSED) {
+                return;
+            }
+            log.info("Context {} works again, closing circuit and restarting {} tunnels", context, waiting.size());
+            changed = tunnels();
+            restarts = List.copyOf(waiting.values());
+            waiting.clear();
+            state = State.CLOSED;
+            probe = null;
+            retryAt = null;
+            generation++;
+            backoff.reset();
+        }
+        changed(changed);
+        restarts.forEach(VIRTUAL_THREADS::execute);
+    }
+
+    void failure(Tunnel tunnel) {
+        List<Tunnel> changed;
+        synchronized (this) {
+            switch (state) {
+                case CLOSED -> {
+                    failing.add(tunnel);
+                    if (failing.size() < THRESHOLD) {
+                        return;
+                    }
+                    log.warn("{} tunnels of context {} are failing, opening circuit", failing.size(), context);
+                }
+                case HALF_OPEN -> {
+                    if (tunnel != probe) {
+                        return;
+                    }
+                    log.warn("Context {} still fails", context);
+                }
+                case OPEN -> {
+                    return;
+                }
+            }
+            open();
+            changed = tunnels();
+        }
+        changed(changed);
+    }
+
+    /**
+     * Forgets a tunnel that was stopped.
+     */
+    synchronized void remove(Tunnel tunnel) {
+        failing.remove(tunnel);
+        waiting.remove(tunnel);
+        if (probe == tunnel) {
+            probe = null;
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * When a tunnel is next let through, if the circuit is open.
+     */
+    synchronized Optional<Instant> getRetryAt() {
+        return Optional.ofNullable(retryAt);
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private void open() {
+        var delay = backoff.failure();
+        var scheduled = ++generation;
+        state = State.OPEN;
+        probe = null;
+        retryAt = Instant.now().plus(delay);
+        failing.clear();
+        log.info("Next attempt for context {} in {} s", context, delay.toSeconds());
+        CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS).execute(() -> halfOpen(scheduled));
+    }
+
+    private void halfOpen(long scheduled) {
+        Runnable restart = null;
+        List<Tunnel> changed;
+        synchronized (this) {
+            if (scheduled != generation || state != State.OPEN) {
+                return;
+            }
+            state = State.HALF_OPEN;
+            retryAt = null;
+            var first = waiting.entrySet().stream().findFirst().orElse(null);
+            if (first != null) {
+                waiting.remove(first.getKey());
+                probe(first.getKey());
+                restart = first.getValue();
+            }
+            changed = tunnels();
+        }
+        changed(changed);
+        if (restart != null) {
+            restart.run();
+        }
+    }
+
+    private void probe(Tunnel tunnel) {
+        if (probe == tunnel) {
+            return;
+        }
+        log.info("Trying context {} with {}", context, tunnel.getTarget());
+        probe = tunnel;
+        var scheduled = ++generation;
+        // A probe that neither comes up nor fails, like one stopped meanwhile, counts as failed
+        CompletableFuture.delayedExecutor(PROBE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS).execute(() -> {
+            List<Tunnel> changed;
+            synchronized (this) {
+                if (scheduled != generation || state != State.HALF_OPEN) {
+                    return;
+                }
+                log.warn("No answer from context {} within {} s", context, PROBE_TIMEOUT.toSeconds());
+                open();
+                changed = tunnels();
+            }
+            changed(changed);
+        });
+    }
+
+    private List<Tunnel> tunnels() {
+        var tunnels = new ArrayList<>(waiting.keySet());
+        if (probe != null) {
+            tunnels.add(probe);
+        }
+        return tunnels;
+    }
+
+    /**
+     * Lets the UI know, outside of the circuit's lock since tunnels call in while locked.
+     */
+    private static void changed(List<Tunnel> tunnels) {
+        tunnels.forEach(t -> VIRTUAL_THREADS.execute(t::circuitChanged));
+    }
+}
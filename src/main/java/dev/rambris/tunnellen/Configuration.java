@@ -3,21 +3,21 @@ package dev.rambris.tunnellen;
 import java.time.Duration;
 import java.util.List;
 
-public record Configuration(List<String> groups, List<Tunnel> portForwards, Duration keepAliveInterval, Duration refreshInterval, int port, boolean killProc) {
+public record Configuration(List<String> groups, List<Tunnel> portForwards, Duration keepAliveInterval, Duration refreshInterval, int port, boolean killProc, Duration idleTimeout, int backlog, int startupConcurrency, boolean coalesce, LogFiles.Settings logFiles, int spawnConcurrency) {
 
     public Configuration withKeepAliveInterval(Duration keepAliveInterval) {
-        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc);
+        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc, idleTimeout, backlog, startupConcurrency, coalesce, logFiles, spawnConcurrency);
     }
 
     public Configuration withRefreshInterval(Duration refreshInterval) {
-        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc);
+        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc, idleTimeout, backlog, startupConcurrency, coalesce, logFiles, spawnConcurrency);
     }
 
     public Configuration withPort(int port) {
-        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc);
+        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc, idleTimeout, backlog, startupConcurrency, coalesce, logFiles, spawnConcurrency);
     }
 
     public Configuration withGroups(List<String> groups) {
-        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc);
+        return new Configuration(groups, portForwards, keepAliveInterval, refreshInterval, port, killProc, idleTimeout, backlog, startupConcurrency, coalesce, logFiles, spawnConcurrency);
     }
 }
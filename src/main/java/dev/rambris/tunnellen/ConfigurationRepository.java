@@ -14,10 +14,21 @@ import java.util.stream.Collectors;
 
 public class ConfigurationRepository {
     private static final Logger log = (Logger) LoggerFactory.getLogger(ConfigurationRepository.class);
+    private static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    private static final int DEFAULT_BACKLOG = 50;
+    private static final int DEFAULT_STARTUP_CONCURRENCY = 4;
+    private static final int DEFAULT_SPAWN_CONCURRENCY = 8;
+    private static final int DEFAULT_PROXY_POOL_SIZE = 4;
+    private static final Duration DEFAULT_PROXY_IDLE_TIMEOUT = Duration.ofSeconds(30);
+    private static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final Duration DEFAULT_POOL_IDLE_TIMEOUT = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_SLOW_QUERY = Duration.ofMillis(500);
+    private static final long DEFAULT_LOG_FILE_SIZE = 1024 * 1024;
 
 
     static Configuration loadConfig(File file, int defaultPort) throws IOException {
-        var config = new Configuration(List.of(), List.of(), Duration.ofMinutes(1), Duration.ofMinutes(1), defaultPort, false);
+        var config = new Configuration(List.of(), List.of(), Duration.ofMinutes(1), Duration.ofMinutes(1), defaultPort, false, DEFAULT_IDLE_TIMEOUT, DEFAULT_BACKLOG, DEFAULT_STARTUP_CONCURRENCY, true, null, DEFAULT_SPAWN_CONCURRENCY);
 
 
         try (var in = new FileReader(file)) {
@@ -27,14 +38,23 @@ public class ConfigurationRepository {
 
             var yaml = (Map<String, Object>) load.loadFromReader(in);
             config = Optional.ofNullable(yaml)
-                    .map(m -> new Configuration(
-                            parseGroups(m.get("groups")),
-                            parsePortForwards(m.get("portForwards")),
-                            parseDuration(m.get("keepAliveInterval"), Duration.ofMinutes(1)),
-                            parseDuration(m.get("refreshInterval"), Duration.ofMinutes(1)),
-                            getAsInt(m.getOrDefault("port", 3000)),
-                            getAsBoolean(m.get("killProc"), false)
-                            ))
+                    .map(m -> {
+                        var idleTimeout = parseDuration(m.get("idleTimeout"), DEFAULT_IDLE_TIMEOUT);
+                        return new Configuration(
+                                parseGroups(m.get("groups")),
+                                parsePortForwards(m.get("portForwards"), idleTimeout),
+                                parseDuration(m.get("keepAliveInterval"), Duration.ofMinutes(1)),
+                                parseDuration(m.get("refreshInterval"), Duration.ofMinutes(1)),
+                                getAsInt(m.getOrDefault("port", 3000)),
+                                getAsBoolean(m.get("killProc"), false),
+                                idleTimeout,
+                                Optional.ofNullable(getAsInt(m.get("backlog"))).orElse(DEFAULT_BACKLOG),
+                                Optional.ofNullable(getAsInt(m.get("startupConcurrency"))).filter(n -> n > 0).orElse(DEFAULT_STARTUP_CONCURRENCY),
+                                getAsBoolean(m.get("coalesce"), true),
+                                parseLogFiles(m.get("logFiles"), file),
+                                Optional.ofNullable(getAsInt(m.get("spawnConcurrency"))).filter(n -> n > 0).orElse(DEFAULT_SPAWN_CONCURRENCY)
+                        );
+                    })
                     .orElse(config);
         } catch(IOException e) {
             System.err.println("Could not load config file: " + e.getMessage());
@@ -51,7 +71,7 @@ public class ConfigurationRepository {
                 .orElseGet(ArrayList::new);
     }
 
-    private static List<Tunnel> parsePortForwards(Object o) {
+    private static List<Tunnel> parsePortForwards(Object o, Duration defaultIdleTimeout) {
         return Optional.ofNullable(o)
                 .filter(List.class::isInstance)
                 .map(l -> (List<Map<String, Object>>) l)
@@ -66,11 +86,81 @@ public class ConfigurationRepository {
                         getIntAsString(m.get("remotePort")),
                         getAsBoolean(m.get("startOnStartup"), false),
                         Optional.ofNullable((String) m.get("type")).map(String::toUpperCase).map(Tunnel.Type::valueOf).orElse(null),
-                        parseDatabase(m.get("database"))
+                        parseDatabase(m.get("database")),
+                        getAsBoolean(m.get("relay"), false),
+                        getAsBoolean(m.get("lazy"), false),
+                        parseDuration(m.get("idleTimeout"), defaultIdleTimeout),
+                        parseDuration(m.get("keepAliveInterval"), null),
+                        Optional.ofNullable((String) m.get("backend")).map(String::toUpperCase).map(Tunnel.Backend::valueOf).orElse(Tunnel.Backend.KUBECTL),
+                        Optional.ofNullable(getAsInt(m.get("pods"))).filter(p -> p > 0).orElse(1),
+                        Optional.ofNullable((String) m.get("balance")).map(b -> b.toUpperCase().replace('-', '_')).map(Relay.Balance::valueOf).orElse(Relay.Balance.ROUND_ROBIN),
+                        Optional.ofNullable(parseProxy(m.get("proxy")))
+                                // Responses are cached by the proxy
+                                .orElse(parseCacheSize(m.get("cache")) > 0 ? new HttpProxy.Pool(DEFAULT_PROXY_POOL_SIZE, DEFAULT_PROXY_IDLE_TIMEOUT) : null),
+                        parseCacheSize(m.get("cache")),
+                        parsePool(m.get("pool")),
+                        parseQueries(m.get("queries"))
                 ))
                 .collect(Collectors.toCollection(ArrayList::new));
     }
 
+    /**
+     * Either true for the defaults, or poolSize and idleTimeout.
+     */
+    private static HttpProxy.Pool parseProxy(Object o) {
+        if (o instanceof Map<?, ?> m) {
+            return new HttpProxy.Pool(
+                    Optional.ofNullable(getAsInt(m.get("poolSize"))).filter(n -> n > 0).orElse(DEFAULT_PROXY_POOL_SIZE),
+                    parseDuration(m.get("idleTimeout"), DEFAULT_PROXY_IDLE_TIMEOUT));
+        }
+        return getAsBoolean(o, false) ? new HttpProxy.Pool(DEFAULT_PROXY_POOL_SIZE, DEFAULT_PROXY_IDLE_TIMEOUT) : null;
+    }
+
+    /**
+     * Either true for the default size, or the size in megabytes. 0 when not caching.
+     */
+    private static long parseCacheSize(Object o) {
+        if (o instanceof Boolean b) {
+            return b ? DEFAULT_CACHE_SIZE : 0;
+        }
+        return Optional.ofNullable(getAsInt(o)).filter(n -> n > 0).map(n -> n * 1024L * 1024).orElse(0L);
+    }
+
+    /**
+     * Either true for the defaults, or size, idleTimeout and password.
+     */
+    private static PgPooler.Settings parsePool(Object o) {
+        if (o instanceof Map<?, ?> m) {
+            return new PgPooler.Settings(
+                    Optional.ofNullable(getAsInt(m.get("size"))).filter(n -> n > 0).orElse(DEFAULT_POOL_SIZE),
+                    parseDuration(m.get("idleTimeout"), DEFAULT_POOL_IDLE_TIMEOUT),
+                    Optional.ofNullable(m.get("password")).map(String::valueOf).orElse(null));
+        }
+        return getAsBoolean(o, false) ? new PgPooler.Settings(DEFAULT_POOL_SIZE, DEFAULT_POOL_IDLE_TIMEOUT, null) : null;
+    }
+
+    /**
+     * Either the directory, or directory and maxSize in megabytes. A relative directory is relative
+     * to the configuration file. Null when not writing log files.
+     */
+    private static LogFiles.Settings parseLogFiles(Object o, File config) {
+        Map<?, ?> settings = o instanceof Map<?, ?> m ? m : o instanceof String directory ? Map.of("directory", directory) : Map.of();
+        return Optional.ofNullable(settings.get("directory"))
+                .map(d -> config.getAbsoluteFile().toPath().resolveSibling(String.valueOf(d)).normalize())
+                .map(d -> new LogFiles.Settings(d, Optional.ofNullable(getAsInt(settings.get("maxSize"))).filter(n -> n > 0).map(n -> n * 1024L * 1024).orElse(DEFAULT_LOG_FILE_SIZE)))
+                .orElse(null);
+    }
+
+    /**
+     * Either true for the default slow query threshold, or slowQuery. Null when not observing.
+     */
+    private static Duration parseQueries(Object o) {
+        if (o instanceof Map<?, ?> m) {
+            return parseDuration(m.get("slowQuery"), DEFAULT_SLOW_QUERY);
+        }
+        return getAsBoolean(o, false) ? DEFAULT_SLOW_QUERY : null;
+    }
+
     private static Database parseDatabase(Object o) {
         return Optional.ofNullable(o)
                 .filter(Map.class::isInstance)
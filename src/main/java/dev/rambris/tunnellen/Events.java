@@ -0,0 +1,89 @@
+package dev.rambris.tunnellen;
+
+import com.sun.net.httpserver.HttpExchange;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-Sent Events stream of tunnel state changes. Each event is encoded once and handed to
+ * every subscriber, and each subscriber is written by its own virtual thread so a slow client
+ * never holds up the others.
+ */
+class Events {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(Events.class);
+    private static final int QUEUE_SIZE = 256;
+    private static final long HEARTBEAT_SECONDS = 15;
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLOSE = new byte[0];
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    void publish(Tunnel tunnel) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        var event = ("event: state\nid: " + System.currentTimeMillis() + "\ndata: " + Json.tunnel(tunnel) + "\n\n").getBytes(StandardCharsets.UTF_8);
+        subscribers.forEach(s -> s.offer(event));
+    }
+
+    void subscribe(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        var subscriber = new Subscriber(exchange);
+        subscribers.add(subscriber);
+        Thread.ofVirtual().name("events").start(subscriber::run);
+    }
+
+    void close() {
+        subscribers.forEach(s -> s.offer(CLOSE));
+    }
+
+    private class Subscriber {
+        private final HttpExchange exchange;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        Subscriber(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void offer(byte[] event) {
+            if (!queue.offer(event)) {
+                log.info("Dropping event subscriber {} that is not keeping up", exchange.getRemoteAddress());
+                subscribers.remove(this);
+                queue.clear();
+                queue.offer(CLOSE);
+            }
+        }
+
+        void run() {
+            try (var out = exchange.getResponseBody()) {
+                out.write("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                while (true) {
+                    var event = queue.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                    if (event == CLOSE) {
+                        break;
+                    }
+                    out.write(event != null ? event : HEARTBEAT);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                log.debug("Event subscriber {} went away: {}", exchange.getRemoteAddress(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscribers.remove(this);
+                exchange.close();
+            }
+        }
+    }
+}
@@ -6,12 +6,26 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Calls back when the content of a file changes. Events are coalesced until the directory has been
+ * quiet for {@link #QUIET_PERIOD}, and the callback only runs if the content hash differs from the
+ * last one seen. Every event in the directory triggers a check, which covers editors that save by
+ * renaming a temporary file over the original and mounts where the file is a symlink that gets
+ * swapped, like Kubernetes ConfigMaps.
+ */
 class FileWatcher {
     private static final Logger log = LoggerFactory.getLogger(FileWatcher.class);
+    private static final long QUIET_PERIOD = 300;
 
     private Thread thread;
     private WatchService watchService;
+    private byte[] lastHash;
 
     public interface Callback {
         void run() throws Exception;
@@ -30,40 +44,68 @@ class FileWatcher {
 
     public void start(Path file, Callback callback) throws IOException {
         watchService = FileSystems.getDefault().newWatchService();
-        Path parent = file.toAbsolutePath().getParent();
-        parent.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        // Watch where the file really lives too, in case it is a symlink into another directory
+        var directories = new LinkedHashSet<Path>();
+        directories.add(file.toAbsolutePath().getParent());
+        try {
+            directories.add(file.toRealPath().getParent());
+        } catch (IOException e) {
+            log.debug("Could not resolve {}: {}", file, e.getMessage());
+        }
+        for (var directory : directories) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        lastHash = hash(file);
         log.info("Going to watch " + file);
 
-        thread = new Thread(() -> {
+        thread = Thread.ofPlatform().name("filewatcher").unstarted(() -> {
             while (true) {
-                WatchKey wk = null;
                 try {
-                    wk = watchService.take();
-                    Thread.sleep(500); // give a chance for duplicate events to pile up
-                    for (WatchEvent<?> event : wk.pollEvents()) {
-                        Path changed = parent.resolve((Path) event.context());
-                        if (Files.exists(changed) && Files.isSameFile(changed, file)) {
-                            log.info("File change event: " + changed);
-                            callback.run();
-                            break;
-                        }
+                    drain(watchService.take());
+                    // Trailing edge: wait until no events have arrived for a while
+                    WatchKey wk;
+                    while ((wk = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                        drain(wk);
                     }
-                } catch (InterruptedException e) {
+
+                    var hash = hash(file);
+                    if (hash == null) {
+                        log.debug("{} is missing, waiting for it to come back", file);
+                    } else if (!Arrays.equals(hash, lastHash)) {
+                        lastHash = hash;
+                        log.info("File change event: " + file);
+                        callback.run();
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
                     log.info("Ending my watch");
                     Thread.currentThread().interrupt();
                     break;
                 } catch (Exception e) {
-                    log.error("Error while reloading cert", e);
-                } finally {
-                    if (wk != null) {
-                        wk.reset();
-                    }
+                    log.error("Error while reloading " + file, e);
                 }
             }
         });
         thread.start();
     }
 
+    private static void drain(WatchKey wk) {
+        wk.pollEvents();
+        wk.reset();
+    }
+
+    /**
+     * SHA-256 of the content of the file, or null if it can't be read right now.
+     */
+    private static byte[] hash(Path file) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public void stop() {
         thread.interrupt();
         try {
@@ -73,4 +115,4 @@ class FileWatcher {
         }
     }
 
-}
\ No newline at end of file
+}
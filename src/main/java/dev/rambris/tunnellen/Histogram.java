@@ -0,0 +1,93 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with fixed buckets, cheap enough to record on hot paths.
+ */
+class Histogram {
+    /** Upper bounds of the buckets in seconds. The last bucket is unbounded */
+    static final double[] BOUNDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1_000_000_000L);
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final LongAdder sumNanos = new LongAdder();
+    private volatile long lastNanos = -1;
+
+    void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        sumNanos.add(nanos);
+        lastNanos = nanos;
+    }
+
+    void record(Duration duration) {
+        record(duration.toNanos());
+    }
+
+    /**
+     * Counts per bucket, not cumulative. The last element counts values above the last bound.
+     */
+    long[] getBuckets() {
+        var counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    double getSumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    /**
+     * The most recently recorded value, if any.
+     */
+    Duration getLast() {
+        var last = lastNanos;
+        return last < 0 ? null : Duration.ofNanos(last);
+    }
+
+    /**
+     * Estimates a quantile as the upper bound of the bucket it falls in.
+     */
+    Duration getQuantile(double q) {
+        var counts = getBuckets();
+        long total = 0;
+        for (var c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return null;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Duration.ofNanos(BOUNDS_NANOS[i]);
+            }
+        }
+        return Duration.ofNanos(BOUNDS_NANOS[BOUNDS_NANOS.length - 1]);
+    }
+}
@@ -0,0 +1,626 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Terminates HTTP/1.1 connections on a tunnel's local port and sends the requests over a small
+ * pool of kept-alive upstream connections. Every connection through kubectl is a stream of its own
+ * through the apiserver and kubelet, so clients that don't reuse connections would otherwise set
+ * one up for every request.
+ * <p>
+ * Requests that upgrade the connection, like WebSockets, get an upstream connection of their own
+ * that is relayed as is.
+ * <p>
+ * An upstream that doesn't answer within {@link #READ_TIMEOUT} fails the request, so a hung pod
+ * doesn't hold a client for good.
+ */
+class HttpProxy {
+    /**
+     * How many idle upstream connections are kept, and for how long. The number of connections in
+     * use is not limited, a burst of requests opens as many as there are requests in flight.
+     */
+    record Pool(int size, Duration idleTimeout) {
+    }
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration READ_TIMEOUT = Duration.ofMinutes(2);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection");
+    // Can be sent twice without harm, RFC 9110 section 9.2.2
+    private static final Set<String> IDEMPOTENT = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+
+    private final Logger log;
+    private final int localPort;
+    private final InetSocketAddress upstream;
+    private final Pool pool;
+    private final ResponseCache cache;
+    // Most recently used last
+    private final Deque<Upstream> idle = new ArrayDeque<>();
+    private volatile ServerSocket server;
+    private volatile Thread sweeper;
+
+    /**
+     * @param upstream where to send requests, the tunnel's relay
+     * @param cache    where to keep responses to GET requests, or null to not cache them
+     */
+    HttpProxy(Logger log, int localPort, InetSocketAddress upstream, Pool pool, ResponseCache cache) {
+        this.log = log;
+        this.localPort = localPort;
+        this.upstream = upstream;
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    void open() throws IOException {
+        var server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(localPort));
+        this.server = server;
+        Thread.ofVirtual().name("proxy-" + localPort).start(this::accept);
+        sweeper = Thread.ofVirtual().name("proxy-pool-" + localPort).start(this::sweep);
+        log.info("Proxying HTTP on port {} with up to {} upstream connections kept alive", localPort, pool.size());
+    }
+
+    void close() {
+        var server = this.server;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                log.debug("Error closing proxy listener: {}", e.getMessage());
+            }
+        }
+        var sweeper = this.sweeper;
+        if (sweeper != null) {
+            sweeper.interrupt();
+        }
+        synchronized (idle) {
+            idle.forEach(Upstream::close);
+            idle.clear();
+        }
+    }
+
+    private void accept() {
+        var server = this.server;
+        while (!server.isClosed()) {
+            try {
+                var socket = server.accept();
+                Thread.ofVirtual().name("proxy").start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.warn("Error accepting connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes upstream connections that have been idle for longer than the idle timeout.
+     */
+    private void sweep() {
+        var interval = Duration.ofMillis(Math.max(1000, pool.idleTimeout().toMillis() / 2));
+        try {
+            while (!server.isClosed()) {
+                Thread.sleep(interval);
+                var expired = new ArrayList<Upstream>();
+                synchronized (idle) {
+                    while (!idle.isEmpty() && idle.peekFirst().isExpired()) {
+                        expired.add(idle.pollFirst());
+                    }
+                }
+                expired.forEach(Upstream::close);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            // Clients that keep their connection get as long as upstream connections to send more
+            socket.setSoTimeout((int) pool.idleTimeout().toMillis());
+            var in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            var out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            Head request;
+            while ((request = Head.read(in)) != null) {
+                if (request.has("connection", "upgrade")) {
+                    upgrade(request, socket, in, out);
+                    return;
+                }
+                if (!exchange(request, in, out)) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            log.debug("Closing idle client connection");
+        } catch (IOException e) {
+            log.debug("Proxied connection failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Sends one request upstream and its response back to the client, or answers it from the cache.
+     * Returns whether the client connection can take another request.
+     */
+    private boolean exchange(Head request, InputStream clientIn, OutputStream clientOut) throws IOException {
+        var keepAlive = "HTTP/1.1".equals(request.version()) && !request.has("connection", "close");
+        var cacheable = cache != null && cache.accepts(request);
+        var cached = cacheable ? cache.get(request).orElse(null) : null;
+        if (cached != null && cached.isFresh()) {
+            cache.hit();
+            clientOut.write(cached.served().encode(HOP_BY_HOP, keepAlive ? null : "close"));
+            clientOut.write(cached.body());
+            clientOut.flush();
+            return keepAlive;
+        }
+
+        var drop = HOP_BY_HOP;
+        if (request.has("expect", "100-continue")) {
+            // Answered here, the upstream connection is already open
+            clientOut.write(CONTINUE);
+            clientOut.flush();
+            drop = Set.of("connection", "keep-alive", "proxy-connection", "expect");
+        }
+        var hasBody = request.has("transfer-encoding", "chunked") || request.contentLength() > 0;
+        // A stale response is revalidated rather than fetched again
+        var upstreamRequest = cached != null ? cached.conditional(request) : request;
+
+        var upstream = acquire();
+        try {
+            Head response;
+            try {
+                response = send(upstream, upstreamRequest, drop, clientIn);
+            } catch (IOException e) {
+                // Whatever was sent may have reached the server, so only what can run twice is retried
+                if (!upstream.reused || hasBody || !IDEMPOTENT.contains(request.method())) {
+                    throw e;
+                }
+                // A pooled connection the upstream closed in the meantime, try a new one
+                log.debug("Pooled connection failed, retrying on a new one: {}", e.getMessage());
+                upstream.close();
+                upstream = connect();
+                response = send(upstream, upstreamRequest, drop, clientIn);
+            }
+            while (response.status() / 100 == 1) {
+                clientOut.write(response.encode(HOP_BY_HOP, null));
+                response = readHead(upstream.in);
+            }
+
+            var noBody = "HEAD".equals(request.method()) || response.status() == 204 || response.status() == 304;
+            var chunked = !noBody && response.has("transfer-encoding", "chunked");
+            var length = noBody ? 0 : response.contentLength();
+            // Without a length the body ends when the upstream closes the connection
+            var untilClose = !noBody && !chunked && length < 0;
+            var reusable = !untilClose && "HTTP/1.1".equals(response.version()) && !response.has("connection", "close");
+            keepAlive = keepAlive && !untilClose;
+
+            if (cached != null && response.status() == 304) {
+                release(upstream, reusable);
+                upstream = null;
+                cache.revalidation();
+                var refreshed = cache.revalidated(request, cached, response);
+                clientOut.write(refreshed.served().encode(HOP_BY_HOP, keepAlive ? null : "close"));
+                clientOut.write(refreshed.body());
+                clientOut.flush();
+                return keepAlive;
+            }
+            if (cacheable) {
+                cache.miss();
+            }
+
+            var capture = cacheable && !untilClose && cache.accepts(request, response) ? new Capture(clientOut, cache.maxEntryBytes()) : null;
+            var body = capture != null ? capture : clientOut;
+            clientOut.write(response.encode(HOP_BY_HOP, keepAlive ? null : "close"));
+            if (chunked) {
+                copyChunked(upstream.in, body);
+            } else if (length > 0) {
+                copy(upstream.in, body, length);
+            } else if (untilClose) {
+                upstream.in.transferTo(body);
+            }
+            clientOut.flush();
+            if (capture != null && capture.isComplete()) {
+                cache.put(request, response, capture.toByteArray());
+            }
+
+            release(upstream, reusable);
+            upstream = null;
+            return keepAlive;
+        } finally {
+            if (upstream != null) {
+                upstream.close();
+            }
+        }
+    }
+
+    private Head send(Upstream upstream, Head request, Set<String> drop, InputStream clientIn) throws IOException {
+        upstream.out.write(request.encode(drop, null));
+        if (request.has("transfer-encoding", "chunked")) {
+            copyChunked(clientIn, upstream.out);
+        } else if (request.contentLength() > 0) {
+            copy(clientIn, upstream.out, request.contentLength());
+        }
+        upstream.out.flush();
+        return readHead(upstream.in);
+    }
+
+    /**
+     * Relays an upgraded connection as is, over an upstream connection of its own.
+     */
+    private void upgrade(Head request, Socket client, InputStream clientIn, OutputStream clientOut) throws IOException {
+        // Upgraded connections may stay quiet in one direction for as long as they like
+        client.setSoTimeout(0);
+        try (var upstream = connect()) {
+            upstream.socket.setSoTimeout(0);
+            upstream.out.write(request.encode(Set.of(), null));
+            upstream.out.flush();
+            var responses = Thread.ofVirtual().name("proxy-upgrade").start(() -> {
+                try {
+                    pipe(upstream.in, clientOut);
+                } catch (IOException e) {
+                    log.debug("Upgraded connection closed: {}", e.getMessage());
+                }
+                // Passes the end on, so a client waiting for more knows there is none
+                try {
+                    client.shutdownOutput();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            });
+            try {
+                pipe(clientIn, upstream.out);
+                upstream.socket.shutdownOutput();
+                responses.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Upstream acquire() throws IOException {
+        synchronized (idle) {
+            Upstream upstream;
+            while ((upstream = idle.pollLast()) != null) {
+                if (!upstream.isExpired()) {
+                    upstream.reused = true;
+                    return upstream;
+                }
+                upstream.close();
+            }
+        }
+        return connect();
+    }
+
+    /**
+     * Returns the connection to the pool, or closes it if it can't take another request.
+     */
+    private void release(Upstream upstream, boolean reusable) {
+        synchronized (idle) {
+            if (reusable && !server.isClosed() && idle.size() < pool.size()) {
+                upstream.idleSince = System.nanoTime();
+                idle.addLast(upstream);
+                return;
+            }
+        }
+        upstream.close();
+    }
+
+    private Upstream connect() throws IOException {
+        var socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) READ_TIMEOUT.toMillis());
+            socket.connect(upstream, (int) CONNECT_TIMEOUT.toMillis());
+            return new Upstream(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static Head readHead(InputStream in) throws IOException {
+        var head = Head.read(in);
+        if (head == null) {
+            throw new EOFException("Upstream closed the connection");
+        }
+        if (!head.start().startsWith("HTTP/")) {
+            throw new IOException("Not an HTTP response: " + head.start());
+        }
+        return head;
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        var buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+        while (length > 0) {
+            var n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a body");
+            }
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies a chunked body as is, up to and including the trailers.
+     */
+    private static void copyChunked(InputStream in, OutputStream out) throws IOException {
+        while (true) {
+            var line = readLine(in);
+            out.write(line);
+            var size = new String(line, StandardCharsets.ISO_8859_1).split(";", 2)[0].trim();
+            long length;
+            try {
+                length = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size " + size);
+            }
+            if (length == 0) {
+                byte[] trailer;
+                do {
+                    trailer = readLine(in);
+                    out.write(trailer);
+                } while (trailer.length > 2);
+                return;
+            }
+            // The chunk and the line break after it
+            copy(in, out, length + 2);
+        }
+    }
+
+    private static byte[] readLine(InputStream in) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed in the middle of a line");
+            }
+            line.write(b);
+            if (line.size() > MAX_HEAD_SIZE) {
+                throw new IOException("Line too long");
+            }
+        }
+        line.write(b);
+        return line.toByteArray();
+    }
+
+    private static void pipe(InputStream in, OutputStream out) throws IOException {
+        var buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            out.flush();
+        }
+    }
+
+    /**
+     * Passes a body on to the client and keeps a copy of it, unless it grows too large to cache.
+     */
+    private static class Capture extends OutputStream {
+        private final OutputStream out;
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        Capture(OutputStream out, long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                if (copy.size() + len > limit) {
+                    copy = null;
+                } else {
+                    copy.write(b, off, len);
+                }
+            }
+        }
+
+        boolean isComplete() {
+            return copy != null;
+        }
+
+        byte[] toByteArray() {
+            return copy.toByteArray();
+        }
+    }
+
+    /**
+     * An upstream connection, pooled between requests.
+     */
+    private class Upstream implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long idleSince;
+        private boolean reused = false;
+
+        Upstream(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - idleSince >= pool.idleTimeout().toNanos();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * The start line and headers of a request or response.
+     */
+    record Head(String start, List<String> headers) {
+        static Head read(InputStream in) throws IOException {
+            String start;
+            do {
+                var line = readLine(in, true);
+                if (line == null) {
+                    return null;
+                }
+                start = line;
+                // Empty lines before a request are allowed
+            } while (start.isEmpty());
+            var headers = new ArrayList<String>();
+            var size = start.length();
+            String line;
+            while (!(line = readLine(in, false)).isEmpty()) {
+                size += line.length();
+                if (size > MAX_HEAD_SIZE) {
+                    throw new IOException("Header too large");
+                }
+                headers.add(line);
+            }
+            return new Head(start, headers);
+        }
+
+        /**
+         * Reads a line without its line break, or null at the end of the stream if allowed.
+         */
+        private static String readLine(InputStream in, boolean eofAllowed) throws IOException {
+            var first = in.read();
+            if (first < 0) {
+                if (eofAllowed) {
+                    return null;
+                }
+                throw new EOFException("Connection closed in the middle of a header");
+            }
+            var line = new ByteArrayOutputStream();
+            line.write(first);
+            if (first != '\n') {
+                line.write(HttpProxy.readLine(in));
+            }
+            var bytes = line.toByteArray();
+            var end = bytes.length - 1;
+            if (end > 0 && bytes[end - 1] == '\r') {
+                end--;
+            }
+            return new String(bytes, 0, end, StandardCharsets.ISO_8859_1);
+        }
+
+        String method() {
+            return start.split(" ", 2)[0];
+        }
+
+        String target() {
+            var parts = start.split(" ", 3);
+            return parts.length > 1 ? parts[1] : "";
+        }
+
+        String version() {
+            var parts = start.split(" ");
+            return start.startsWith("HTTP/") ? parts[0] : parts[parts.length - 1];
+        }
+
+        int status() {
+            var parts = start.split(" ", 3);
+            try {
+                return parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        long contentLength() {
+            return values("content-length").stream().findFirst().map(v -> {
+                try {
+                    return Long.parseLong(v);
+                } catch (NumberFormatException e) {
+                    return -1L;
+                }
+            }).orElse(-1L);
+        }
+
+        /**
+         * Whether a comma separated header has the token, ignoring case.
+         */
+        boolean has(String name, String token) {
+            return values(name).stream()
+                    .flatMap(v -> Arrays.stream(v.split(",")))
+                    .anyMatch(t -> t.trim().equalsIgnoreCase(token));
+        }
+
+        Optional<String> value(String name) {
+            return values(name).stream().findFirst();
+        }
+
+        List<String> values(String name) {
+            return headers.stream()
+                    .filter(h -> h.regionMatches(true, 0, name, 0, name.length()) && h.length() > name.length() && h.charAt(name.length()) == ':')
+                    .map(h -> h.substring(name.length() + 1).trim())
+                    .toList();
+        }
+
+        /**
+         * A copy with the header set to the value, replacing any it had.
+         */
+        Head with(String name, String value) {
+            var headers = new ArrayList<String>();
+            for (var header : this.headers) {
+                if (!(header.regionMatches(true, 0, name, 0, name.length()) && header.length() > name.length() && header.charAt(name.length()) == ':')) {
+                    headers.add(header);
+                }
+            }
+            headers.add(name + ": " + value);
+            return new Head(start, headers);
+        }
+
+        /**
+         * The head as sent on, without the headers in drop and with a Connection header if given.
+         */
+        byte[] encode(Set<String> drop, String connection) {
+            var out = new StringBuilder(start).append("\r\n");
+            for (var header : headers) {
+                var colon = header.indexOf(':');
+                var name = (colon < 0 ? header : header.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+                if (!drop.contains(name)) {
+                    out.append(header).append("\r\n");
+                }
+            }
+            if (connection != null) {
+                out.append("Connection: ").append(connection).append("\r\n");
+            }
+            return out.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
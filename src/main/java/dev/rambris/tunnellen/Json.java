@@ -0,0 +1,98 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.stream.Collectors;
+
+/**
+ * Writes the JSON representations used by the REST API and the event stream.
+ */
+final class Json {
+    private Json() {
+    }
+
+    static String tunnels(Collection<Tunnel> tunnels) {
+        return tunnels.stream().map(Json::tunnel).collect(Collectors.joining(",", "[", "]"));
+    }
+
+    static String tunnel(Tunnel t) {
+        var lastCheck = t.getLastCheck();
+        var latency = t.getProbeLatency().getLast();
+        var traffic = t.getTraffic();
+        return "{" +
+               "\"id\":" + string(t.getId()) +
+               ",\"group\":" + string(t.getGroup()) +
+               ",\"context\":" + string(t.getContext()) +
+               ",\"namespace\":" + string(t.getNamespace()) +
+               ",\"target\":" + string(t.getTarget()) +
+               ",\"localPort\":" + t.getLocalPort() +
+               ",\"remotePort\":" + string(t.getDestinationPort()) +
+               ",\"type\":" + string(t.getType().map(type -> type.name().toLowerCase()).orElse(null)) +
+               ",\"state\":" + string(t.getState().name().toLowerCase()) +
+               ",\"circuit\":" + string(t.getCircuit().getState().name().toLowerCase()) +
+               ",\"startOnStartup\":" + t.isStartOnStartup() +
+               ",\"backend\":" + string(t.getBackend().name().toLowerCase()) +
+               ",\"pods\":" + t.getPods() +
+               ",\"upstreams\":" + t.getUpstreamCount() +
+               ",\"proxy\":" + t.isProxy() +
+               ",\"cache\":" + t.getCache().map(c -> "{\"hits\":" + c.getHits() + ",\"revalidations\":" + c.getRevalidations() + ",\"misses\":" + c.getMisses()
+                                                        + ",\"entries\":" + c.getEntries() + ",\"bytes\":" + c.getBytes() + "}").orElse("null") +
+               ",\"pool\":" + t.getPooler().map(p -> "{\"transactions\":" + p.getTransactions() + ",\"logins\":" + p.getLogins() + "}").orElse("null") +
+               ",\"queries\":" + t.getQueries().map(Json::queries).orElse("null") +
+               ",\"lazy\":" + t.isLazy() +
+               ",\"lastCheck\":" + string(lastCheck.isAfter(LocalDateTime.MIN) ? lastCheck.toString() : null) +
+               ",\"probeLatencyMillis\":" + (latency != null ? latency.toMillis() : "null") +
+               ",\"restarts\":" + t.getRestarts() +
+               ",\"activeConnections\":" + traffic.getActiveConnections() +
+               ",\"totalConnections\":" + traffic.getTotalConnections() +
+               "}";
+    }
+
+    private static String queries(QueryStats q) {
+        var latency = q.getLatency();
+        return "{\"count\":" + q.getQueries() +
+               ",\"errors\":" + q.getErrors() +
+               ",\"slow\":" + q.getSlow() +
+               ",\"p50Millis\":" + millis(latency.getQuantile(0.5)) +
+               ",\"p95Millis\":" + millis(latency.getQuantile(0.95)) +
+               ",\"p99Millis\":" + millis(latency.getQuantile(0.99)) +
+               ",\"slowQueries\":" + q.getSamples().stream()
+                       .map(s -> "{\"at\":" + string(s.at().toString()) + ",\"millis\":" + s.latency().toMillis() + ",\"statement\":" + string(s.statement()) + "}")
+                       .collect(Collectors.joining(",", "[", "]")) +
+               "}";
+    }
+
+    private static String millis(Duration duration) {
+        return duration != null ? String.valueOf(duration.toMillis()) : "null";
+    }
+
+    static String error(String message) {
+        return "{\"error\":" + string(message) + "}";
+    }
+
+    static String string(String value) {
+        if (value == null) {
+            return "null";
+        }
+        var out = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append("\\u%04x".formatted((int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+}
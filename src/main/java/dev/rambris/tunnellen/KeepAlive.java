@@ -4,77 +4,154 @@ import ch.qos.logback.classic.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Checks every tunnel on its own schedule and restarts the ones that are not alive. The scheduler
+ * thread only keeps time; each check runs on a virtual thread so a slow tunnel never delays the
+ * others.
+ */
 public class KeepAlive {
     private static final Logger log = (Logger) LoggerFactory.getLogger(KeepAlive.class);
-    private List<Tunnel> tunnels = new ArrayList<>();
-    private boolean running = false;
-    private Timer timer;
-    private Duration keepAliveInterval;
+    private static final double JITTER = 0.1;
+
+    private final Map<Tunnel, Check> checks = new ConcurrentHashMap<>();
+    private volatile boolean running = false;
+    private volatile ScheduledExecutorService scheduler;
+    private volatile Duration keepAliveInterval;
 
     public KeepAlive(Duration keepAliveInterval) {
         this.keepAliveInterval = keepAliveInterval;
     }
 
-
     public void addTunnel(Tunnel tunnel) {
-        var newTunnels = new ArrayList<>(tunnels);
-        newTunnels.add(tunnel);
-        tunnels = newTunnels;
+        var check = new Check(tunnel);
+        if (checks.putIfAbsent(tunnel, check) == null) {
+            check.schedule(initialDelay(tunnel));
+        }
     }
 
     public void removeTunnel(Tunnel tunnel) {
-        var newTunnels = new ArrayList<>(tunnels);
-        newTunnels.remove(tunnel);
-        tunnels = newTunnels;
+        var check = checks.remove(tunnel);
+        if (check != null) {
+            check.cancel();
+        }
     }
 
-    private void checkTunnels() {
-        tunnels
-                .parallelStream()
-                .filter(e -> running && e.getLastCheck().isBefore(LocalDateTime.now().minusMinutes(1)))
-                .forEach(t -> {
-                    log.debug("Checking tunnel {}:{} (started:{})", t.getContext(), t.getTarget(), t.isStarted());
-                    if (t.isStarted() && !t.isAlive()) {
-                        log.info("Restarting tunnel");
-                        t.stop();
-                        t.start();
-                    }
-                });
+    private void checkTunnel(Tunnel t) {
+        log.debug("Checking tunnel {}:{} (state:{})", t.getContext(), t.getTarget(), t.getState());
+        // Idle tunnels have nothing to check and failed ones are already being restarted. Starting
+        // ones get an interval to come up, kubectl may still be authenticating
+        var state = t.getState();
+        var starting = state == Tunnel.State.STARTING && t.getStartedFor().compareTo(interval(t)) >= 0;
+        if ((starting || state == Tunnel.State.RUNNING) && !t.isAlive()) {
+            t.checkFailed();
+        }
+        t.sampleResources();
     }
 
-    public void start() {
-        if(!running) {
-            timer = new Timer("Keepalive");
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    checkTunnels();
-                }
-            }, keepAliveInterval.toMillis(), keepAliveInterval.toMillis());
-
+    public synchronized void start() {
+        if (!running) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("keepalive").daemon().factory());
             running = true;
+            reschedule();
         }
     }
 
-    public void stop() {
-        if(running) {
+    public synchronized void stop() {
+        if (running) {
             running = false;
-            timer.cancel();
-            timer = null;
+            checks.values().forEach(Check::cancel);
+            scheduler.shutdownNow();
+            scheduler = null;
         }
     }
 
     public void setKeepAliveInterval(Duration keepAliveInterval) {
         this.keepAliveInterval = keepAliveInterval;
-        if(running) {
-            stop();
-            start();
+        if (running) {
+            reschedule();
+        }
+    }
+
+    private void reschedule() {
+        checks.replaceAll((tunnel, check) -> {
+            check.cancel();
+            var next = new Check(tunnel);
+            next.schedule(initialDelay(tunnel));
+            return next;
+        });
+    }
+
+    private Duration interval(Tunnel tunnel) {
+        return tunnel.getKeepAliveInterval().orElse(keepAliveInterval);
+    }
+
+    /**
+     * Spreads the first checks over the interval after the first one, so tunnels started together
+     * are not checked together and none is checked before it had a whole interval to come up.
+     */
+    private Duration initialDelay(Tunnel tunnel) {
+        var millis = interval(tunnel).toMillis();
+        return Duration.ofMillis(millis + ThreadLocalRandom.current().nextLong(millis + 1));
+    }
+
+    private Duration nextDelay(Tunnel tunnel) {
+        var millis = interval(tunnel).toMillis();
+        var jitter = (long) (millis * JITTER);
+        return Duration.ofMillis(millis + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1));
+    }
+
+    /**
+     * One tunnel's chain of checks. The next check is scheduled when the current one is done, so
+     * there is never more than one check of a tunnel in flight.
+     */
+    private class Check {
+        private final Tunnel tunnel;
+        private volatile boolean cancelled = false;
+        private volatile ScheduledFuture<?> future;
+
+        Check(Tunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        void schedule(Duration delay) {
+            var scheduler = KeepAlive.this.scheduler;
+            if (cancelled || !running || scheduler == null) {
+                return;
+            }
+            try {
+                future = scheduler.schedule(() -> Thread.ofVirtual().name("keepalive-check").start(this::run), delay.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException __) {
+                // Keepalive is stopping
+            }
+        }
+
+        private void run() {
+            try {
+                if (!cancelled) {
+                    checkTunnel(tunnel);
+                }
+            } catch (Exception e) {
+                log.error("Error checking tunnel {}", tunnel, e);
+            } finally {
+                schedule(nextDelay(tunnel));
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            var future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
         }
     }
 }
@@ -0,0 +1,233 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Talks to the apiserver of one kubeconfig context. There is one client per context, shared by
+ * every tunnel in it, so connections, TLS sessions and credentials are reused instead of being set
+ * up by a kubectl process per tunnel.
+ */
+class KubeClient {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(KubeClient.class);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final String PORT_FORWARD_PROTOCOL = "v4.channel.k8s.io";
+    private static final Map<String, KubeClient> clients = new HashMap<>();
+    private static KubeConfig kubeConfig;
+
+    /**
+     * The pod and container port a target resolves to.
+     */
+    record Endpoint(String pod, int port) {
+    }
+
+    private final KubeConfig.Context context;
+    private final HttpClient http;
+
+    private KubeClient(KubeConfig.Context context) {
+        this.context = context;
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .sslContext(context.sslContext())
+                .connectTimeout(TIMEOUT)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+    }
+
+    static synchronized KubeClient forContext(String name) throws IOException {
+        var client = clients.get(name);
+        if (client == null) {
+            if (kubeConfig == null || !kubeConfig.hasContext(name)) {
+                // Pick up contexts added since the kubeconfig was read
+                kubeConfig = KubeConfig.load();
+            }
+            client = new KubeClient(kubeConfig.context(name));
+            clients.put(name, client);
+        }
+        return client;
+    }
+
+    /**
+     * Namespace to use when the forward doesn't name one, like kubectl does.
+     */
+    String defaultNamespace() {
+        return context.namespace().orElse("default");
+    }
+
+    /**
+     * Finds a running pod for a target like kubectl port-forward takes it: a pod name, or
+     * pod/, service/, deployment/, statefulset/, replicaset/ or daemonset/ followed by a name. The
+     * port is a port number or name; for services it is the service port.
+     */
+    Endpoint resolve(String namespace, String target, String port) throws IOException {
+        return resolve(namespace, target, port, 1, false).get(0);
+    }
+
+    /**
+     * Finds up to max pods for a target, like {@link #resolve(String, String, String)}.
+     *
+     * @param ready only pods that are ready, rather than preferring them
+     */
+    List<Endpoint> resolve(String namespace, String target, String port, int max, boolean ready) throws IOException {
+        var slash = target.indexOf('/');
+        var kind = slash < 0 ? "pod" : target.substring(0, slash).toLowerCase();
+        var name = target.substring(slash + 1);
+        var ns = "/namespaces/" + encode(namespace);
+        return switch (kind) {
+            case "pod", "pods", "po" -> {
+                var pod = get("/api/v1" + ns + "/pods/" + encode(name));
+                yield List.of(new Endpoint(name, containerPort(pod, port)));
+            }
+            case "service", "services", "svc" -> {
+                var service = get("/api/v1" + ns + "/services/" + encode(name));
+                var spec = map(service.get("spec"));
+                var servicePort = list(spec.get("ports")).stream().map(KubeClient::map)
+                        .filter(p -> port.equals(String.valueOf(p.get("port"))) || port.equals(p.get("name")))
+                        .findFirst()
+                        .orElseThrow(() -> new IOException("Service " + name + " has no port " + port));
+                var targetPort = String.valueOf(Optional.ofNullable(servicePort.get("targetPort")).orElse(servicePort.get("port")));
+                yield endpoints(runningPods(ns, map(spec.get("selector")), target, max, ready), targetPort);
+            }
+            case "deployment", "deployments", "deploy", "statefulset", "statefulsets", "sts", "replicaset", "replicasets", "rs", "daemonset", "daemonsets", "ds" -> {
+                var resource = switch (kind) {
+                    case "deployment", "deployments", "deploy" -> "deployments";
+                    case "statefulset", "statefulsets", "sts" -> "statefulsets";
+                    case "replicaset", "replicasets", "rs" -> "replicasets";
+                    default -> "daemonsets";
+                };
+                var workload = get("/apis/apps/v1" + ns + "/" + resource + "/" + encode(name));
+                var selector = map(map(map(workload.get("spec")).get("selector")).get("matchLabels"));
+                yield endpoints(runningPods(ns, selector, target, max, ready), port);
+            }
+            default -> throw new IOException("Can't forward to " + target);
+        };
+    }
+
+    private static List<Endpoint> endpoints(List<Map<String, Object>> pods, String port) throws IOException {
+        var endpoints = new ArrayList<Endpoint>();
+        for (var pod : pods) {
+            endpoints.add(new Endpoint(name(pod), containerPort(pod, port)));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Running pods matching the selector, ready ones first.
+     */
+    private List<Map<String, Object>> runningPods(String ns, Map<String, Object> selector, String target, int max, boolean ready) throws IOException {
+        if (selector.isEmpty()) {
+            throw new IOException(target + " has no selector");
+        }
+        var labelSelector = selector.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(","));
+        var pods = get("/api/v1" + ns + "/pods?labelSelector=" + encode(labelSelector));
+        var running = list(pods.get("items")).stream().map(KubeClient::map)
+                .filter(p -> "Running".equals(map(p.get("status")).get("phase")))
+                .filter(p -> map(p.get("metadata")).get("deletionTimestamp") == null)
+                .filter(p -> !ready || isReady(p))
+                .sorted(Comparator.comparing((Map<String, Object> p) -> !isReady(p)))
+                .limit(max)
+                .toList();
+        if (running.isEmpty()) {
+            throw new IOException("No " + (ready ? "ready" : "running") + " pod for " + target);
+        }
+        return running;
+    }
+
+    private static boolean isReady(Map<String, Object> pod) {
+        return list(map(pod.get("status")).get("conditions")).stream().map(KubeClient::map)
+                .anyMatch(c -> "Ready".equals(c.get("type")) && "True".equals(c.get("status")));
+    }
+
+    private static int containerPort(Map<String, Object> pod, String port) throws IOException {
+        if (port.chars().allMatch(Character::isDigit)) {
+            return Integer.parseInt(port);
+        }
+        return list(map(pod.get("spec")).get("containers")).stream().map(KubeClient::map)
+                .flatMap(c -> list(c.get("ports")).stream().map(KubeClient::map))
+                .filter(p -> port.equals(p.get("name")))
+                .map(p -> Integer.parseInt(String.valueOf(p.get("containerPort"))))
+                .findFirst()
+                .orElseThrow(() -> new IOException("Pod " + name(pod) + " has no port named " + port));
+    }
+
+    /**
+     * Opens a port-forward stream to one port of a pod. Every stream is a WebSocket of its own.
+     */
+    CompletableFuture<WebSocket> portForward(String namespace, Endpoint endpoint, WebSocket.Listener listener) throws IOException {
+        var uri = URI.create(context.server().toString().replaceFirst("^http", "ws")
+                             + "/api/v1/namespaces/" + encode(namespace) + "/pods/" + encode(endpoint.pod()) + "/portforward?ports=" + endpoint.port());
+        var builder = http.newWebSocketBuilder()
+                .connectTimeout(TIMEOUT)
+                .subprotocols(PORT_FORWARD_PROTOCOL);
+        context.credentials().authorization().ifPresent(a -> builder.header("Authorization", a));
+        return builder.buildAsync(uri, listener);
+    }
+
+    private Map<String, Object> get(String path) throws IOException {
+        var request = HttpRequest.newBuilder(URI.create(context.server() + path))
+                .timeout(TIMEOUT)
+                .header("Accept", "application/json");
+        context.credentials().authorization().ifPresent(a -> request.header("Authorization", a));
+        HttpResponse<String> response;
+        try {
+            response = http.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (IOException e) {
+            throw new IOException("Could not reach " + context.server() + ": " + Optional.ofNullable(e.getMessage()).orElse(e.getClass().getSimpleName()), e);
+        }
+        if (response.statusCode() != 200) {
+            log.debug("GET {} in context {} returned {}: {}", path, context.name(), response.statusCode(), response.body());
+            throw new IOException("GET " + path + " returned " + response.statusCode() + ": " + message(response.body()));
+        }
+        return KubeConfig.parse(response.body());
+    }
+
+    /**
+     * The message of a Status returned with an error, or the body if it isn't one.
+     */
+    private static String message(String body) {
+        try {
+            return Optional.ofNullable(KubeConfig.parse(body).get("message")).map(String::valueOf).orElse(body);
+        } catch (RuntimeException e) {
+            return body;
+        }
+    }
+
+    private static String name(Map<String, Object> resource) {
+        return String.valueOf(map(resource.get("metadata")).get("name"));
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object o) {
+        return o instanceof Map<?, ?> m ? (Map<String, Object>) m : Map.of();
+    }
+
+    private static List<?> list(Object o) {
+        return o instanceof List<?> l ? l : List.of();
+    }
+}
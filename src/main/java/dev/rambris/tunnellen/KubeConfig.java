@@ -0,0 +1,406 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+import org.snakeyaml.engine.v2.api.Load;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a kubeconfig needed to talk to an apiserver: where it is, how to trust it and how
+ * to authenticate. The files listed in KUBECONFIG are merged like kubectl does, where the first
+ * file to define a name wins.
+ */
+class KubeConfig {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(KubeConfig.class);
+    private static final Pattern PEM_KEY = Pattern.compile("-----BEGIN ([A-Z ]+)-----([^-]+)-----END");
+    private static final Duration EXEC_TIMEOUT = Duration.ofSeconds(30);
+    private static final Executor VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final Duration EXPIRY_MARGIN = Duration.ofMinutes(1);
+    // DER of the AlgorithmIdentifier for rsaEncryption
+    private static final byte[] RSA_ALGORITHM = {0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00};
+
+    /**
+     * One context with everything resolved.
+     */
+    record Context(String name, URI server, Optional<String> namespace, SSLContext sslContext, Credentials credentials) {
+    }
+
+    /**
+     * Produces the value of the Authorization header, if the user has one.
+     */
+    interface Credentials {
+        Optional<String> authorization() throws IOException;
+    }
+
+    /**
+     * An entry of the kubeconfig together with the directory of the file it came from, which
+     * relative paths are resolved against.
+     */
+    private record Entry(Map<String, Object> value, Path base) {
+    }
+
+    private final Map<String, Entry> clusters = new HashMap<>();
+    private final Map<String, Entry> users = new HashMap<>();
+    private final Map<String, Entry> contexts = new HashMap<>();
+
+    static KubeConfig load() throws IOException {
+        var config = new KubeConfig();
+        var files = Optional.ofNullable(System.getenv("KUBECONFIG"))
+                .filter(s -> !s.isBlank())
+                .map(s -> List.of(s.split(File.pathSeparator)))
+                .orElseGet(() -> List.of(Path.of(System.getProperty("user.home"), ".kube", "config").toString()));
+        for (var file : files) {
+            var path = Path.of(file).toAbsolutePath();
+            if (Files.isReadable(path)) {
+                config.merge(path);
+            }
+        }
+        return config;
+    }
+
+    private void merge(Path file) throws IOException {
+        var yaml = parse(Files.readString(file));
+        var base = file.getParent();
+        merge(yaml.get("clusters"), "cluster", clusters, base);
+        merge(yaml.get("users"), "user", users, base);
+        merge(yaml.get("contexts"), "context", contexts, base);
+    }
+
+    private static void merge(Object list, String key, Map<String, Entry> into, Path base) {
+        if (list instanceof List<?> l) {
+            for (var item : l) {
+                if (item instanceof Map<?, ?> m && m.get("name") instanceof String name && m.get(key) instanceof Map<?, ?> value) {
+                    into.putIfAbsent(name, new Entry(map(value), base));
+                }
+            }
+        }
+    }
+
+    boolean hasContext(String name) {
+        return contexts.containsKey(name);
+    }
+
+    Context context(String name) throws IOException {
+        var context = Optional.ofNullable(contexts.get(name)).orElseThrow(() -> new IOException("No context " + name + " in kubeconfig"));
+        var cluster = Optional.ofNullable(context.value().get("cluster")).map(String::valueOf).map(clusters::get)
+                .orElseThrow(() -> new IOException("No cluster for context " + name + " in kubeconfig"));
+        var user = Optional.ofNullable(context.value().get("user")).map(String::valueOf).map(users::get)
+                .orElse(new Entry(Map.of(), cluster.base()));
+        var server = Optional.ofNullable(cluster.value().get("server")).map(String::valueOf)
+                .orElseThrow(() -> new IOException("No server for context " + name + " in kubeconfig"));
+        try {
+            return new Context(name,
+                    URI.create(server.endsWith("/") ? server.substring(0, server.length() - 1) : server),
+                    Optional.ofNullable(context.value().get("namespace")).map(String::valueOf),
+                    sslContext(cluster, user),
+                    credentials(name, user));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up TLS for context " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static SSLContext sslContext(Entry cluster, Entry user) throws IOException, GeneralSecurityException {
+        TrustManager[] trust = null;
+        if (Boolean.TRUE.equals(cluster.value().get("insecure-skip-tls-verify"))) {
+            trust = new TrustManager[]{new TrustAll()};
+        } else {
+            var ca = pem(cluster, "certificate-authority");
+            if (ca != null) {
+                var store = KeyStore.getInstance(KeyStore.getDefaultType());
+                store.load(null, null);
+                int i = 0;
+                for (var cert : certificates(ca)) {
+                    store.setCertificateEntry("ca" + i++, cert);
+                }
+                var factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(store);
+                trust = factory.getTrustManagers();
+            }
+        }
+
+        var cert = pem(user, "client-certificate");
+        var key = pem(user, "client-key");
+        KeyManager[] keys = null;
+        if (cert != null && key != null) {
+            var store = KeyStore.getInstance(KeyStore.getDefaultType());
+            store.load(null, null);
+            store.setKeyEntry("client", privateKey(key), new char[0], certificates(cert).toArray(Certificate[]::new));
+            var factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(store, new char[0]);
+            keys = factory.getKeyManagers();
+        }
+
+        var ssl = SSLContext.getInstance("TLS");
+        ssl.init(keys, trust, null);
+        return ssl;
+    }
+
+    private static Credentials credentials(String context, Entry user) throws IOException {
+        var u = user.value();
+        if (u.get("token") instanceof String token) {
+            return () -> Optional.of("Bearer " + token);
+        }
+        if (u.get("tokenFile") instanceof String tokenFile) {
+            var path = user.base().resolve(tokenFile);
+            // Service account tokens are rotated, so read the file every time
+            return () -> Optional.of("Bearer " + Files.readString(path).strip());
+        }
+        if (u.get("exec") instanceof Map<?, ?> exec) {
+            return new ExecCredentials(context, map(exec));
+        }
+        if (u.get("username") instanceof String username && u.get("password") instanceof String password) {
+            var basic = Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+            return () -> Optional.of("Basic " + basic);
+        }
+        return Optional::empty;
+    }
+
+    /**
+     * Runs the exec credential plugin of a user, like the cloud providers' login helpers, and
+     * keeps the token until shortly before it expires.
+     */
+    private static class ExecCredentials implements Credentials {
+        private final String context;
+        private final List<String> command;
+        private final Map<String, String> env = new HashMap<>();
+        private final String apiVersion;
+        // Not a monitor, the connections waiting for a token are virtual threads and the plugin's
+        // output is read on one too, which could otherwise find no carrier left to run on
+        private final ReentrantLock lock = new ReentrantLock();
+        private String token;
+        private Instant expires = Instant.MIN;
+
+        ExecCredentials(String context, Map<String, Object> exec) throws IOException {
+            this.context = context;
+            var command = Optional.ofNullable(exec.get("command")).map(String::valueOf)
+                    .orElseThrow(() -> new IOException("No command in exec credentials of context " + context));
+            var args = exec.get("args") instanceof List<?> l ? l.stream().map(String::valueOf).toList() : List.<String>of();
+            this.command = new ArrayList<>(List.of(command));
+            this.command.addAll(args);
+            if (exec.get("env") instanceof List<?> l) {
+                for (var e : l) {
+                    if (e instanceof Map<?, ?> m) {
+                        env.put(String.valueOf(m.get("name")), String.valueOf(m.get("value")));
+                    }
+                }
+            }
+            this.apiVersion = Optional.ofNullable(exec.get("apiVersion")).map(String::valueOf).orElse("client.authentication.k8s.io/v1");
+        }
+
+        @Override
+        public Optional<String> authorization() throws IOException {
+            lock.lock();
+            try {
+                if (token == null || Instant.now().isAfter(expires.minus(EXPIRY_MARGIN))) {
+                    refresh();
+                }
+                return Optional.of("Bearer " + token);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refresh() throws IOException {
+            log.debug("Running exec credential plugin for context {}", context);
+            var builder = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD);
+            builder.environment().putAll(env);
+            builder.environment().put("KUBERNETES_EXEC_INFO", "{\"apiVersion\":\"" + apiVersion + "\",\"kind\":\"ExecCredential\",\"spec\":{\"interactive\":false}}");
+            var p = builder.start();
+            // Read on a thread of its own, so a plugin that never closes its output still times out
+            var output = CompletableFuture.supplyAsync(() -> {
+                try (var in = p.getInputStream()) {
+                    return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, VIRTUAL_THREADS);
+            String out;
+            try {
+                var deadline = System.nanoTime() + EXEC_TIMEOUT.toNanos();
+                if (!p.waitFor(EXEC_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS) || p.exitValue() != 0) {
+                    throw new IOException("Exec credential plugin " + command.get(0) + " failed for context " + context);
+                }
+                out = output.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                throw new IOException("Exec credential plugin " + command.get(0) + " failed for context " + context, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while running exec credential plugin", e);
+            } finally {
+                // Its children too, one of them may be what holds the output open
+                p.descendants().forEach(ProcessHandle::destroyForcibly);
+                p.destroyForcibly();
+            }
+            var status = parse(out).get("status");
+            if (!(status instanceof Map<?, ?> s) || !(s.get("token") instanceof String t)) {
+                throw new IOException("Exec credential plugin " + command.get(0) + " returned no token for context " + context);
+            }
+            token = t;
+            expires = s.get("expirationTimestamp") != null ? Instant.parse(String.valueOf(s.get("expirationTimestamp"))) : Instant.MAX;
+        }
+    }
+
+    /**
+     * Content of a PEM file or inline base64 data, like certificate-authority and
+     * certificate-authority-data.
+     */
+    private static byte[] pem(Entry entry, String key) throws IOException {
+        if (entry.value().get(key + "-data") instanceof String data) {
+            return Base64.getMimeDecoder().decode(data);
+        }
+        if (entry.value().get(key) instanceof String file) {
+            return Files.readAllBytes(entry.base().resolve(file));
+        }
+        return null;
+    }
+
+    private static List<X509Certificate> certificates(byte[] pem) throws GeneralSecurityException {
+        return CertificateFactory.getInstance("X.509").generateCertificates(new ByteArrayInputStream(pem)).stream()
+                .map(X509Certificate.class::cast)
+                .toList();
+    }
+
+    /**
+     * Reads a PKCS#8 private key, or a PKCS#1 RSA key as written by older tooling.
+     */
+    static PrivateKey privateKey(byte[] pem) throws GeneralSecurityException {
+        var matcher = PEM_KEY.matcher(new String(pem, StandardCharsets.US_ASCII));
+        if (!matcher.find()) {
+            throw new GeneralSecurityException("No private key found");
+        }
+        var der = Base64.getMimeDecoder().decode(matcher.group(2));
+        var pkcs8 = switch (matcher.group(1)) {
+            case "PRIVATE KEY" -> der;
+            case "RSA PRIVATE KEY" -> sequence(concat(new byte[]{0x02, 0x01, 0x00}, RSA_ALGORITHM, tagged(0x04, der)));
+            default -> throw new GeneralSecurityException(matcher.group(1) + " is not supported, convert the key to PKCS#8");
+        };
+        for (var algorithm : List.of("RSA", "EC", "Ed25519")) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+            } catch (InvalidKeySpecException e) {
+                // Try the next algorithm
+            }
+        }
+        throw new GeneralSecurityException("Unsupported private key");
+    }
+
+    private static byte[] sequence(byte[] content) {
+        return tagged(0x30, content);
+    }
+
+    private static byte[] tagged(int tag, byte[] content) {
+        var out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        var length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            var bytes = length < 0x100 ? 1 : length < 0x10000 ? 2 : length < 0x1000000 ? 3 : 4;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        out.writeBytes(content);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        var out = new ByteArrayOutputStream();
+        for (var part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses YAML, or JSON since that is a subset of it.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parse(String text) {
+        var parsed = new Load(LoadSettings.builder().build()).loadFromString(text);
+        return parsed instanceof Map<?, ?> m ? (Map<String, Object>) m : Map.of();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Map<?, ?> m) {
+        return (Map<String, Object>) m;
+    }
+
+    /**
+     * For clusters with insecure-skip-tls-verify, which also skips checking the host name.
+     */
+    private static class TrustAll extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A kubectl port-forward shared by the tunnels that forward to the same target. kubectl takes
+ * several ports in one invocation, so an app port and its metrics port cost one process and one
+ * connection to the apiserver instead of two.
+ * <p>
+ * kubectl can't add or drop ports while it runs, so the process is replaced when a tunnel joins or
+ * leaves, and the other tunnels are paused meanwhile. Changes that come close together are applied
+ * at once, so tunnels started together share the first process. A relayed tunnel that leaves only
+ * leaves its port behind, kubectl forwards it on loopback until it is replaced anyway, and takes it
+ * up again if it comes back, so stopping and starting it doesn't disturb the others. Lazy tunnels
+ * start and stop all the time and never share.
+ * <p>
+ * When kubectl exits on its own the tunnels stay members and back off, and the first of them to
+ * restart starts it again for all of them.
+ * <p>
+ * Only a limited number of processes start at the same time, across all contexts, since kubectl
+ * can spend a lot of CPU on authenticating through an exec plugin. A process holds its slot until
+ * it forwards, exits or {@link #SPAWN_TIMEOUT} has passed.
+ * <p>
+ * With an output directory, kubectl writes to files there instead of pipes, so it can outlive
+ * tunnellen and be adopted by the next run without dying on a broken pipe.
+ */
+class KubectlProcess {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(KubectlProcess.class);
+    private static final Duration SETTLE = Duration.ofMillis(100);
+    private static final Executor VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final Duration SPAWN_TIMEOUT = Duration.ofSeconds(30);
+    private static final Pattern FORWARDING = Pattern.compile("Forwarding from ([^ ]+):(\\d+) -> (\\d+)");
+    private static final Map<String, KubectlProcess> processes = new HashMap<>();
+    private static final AtomicLong outputs = new AtomicLong();
+    private static volatile boolean coalesce = true;
+    private static volatile Path outputDirectory;
+    private static volatile int spawnConcurrency = 8;
+    private static volatile boolean shuttingDown = false;
+    private static volatile Semaphore spawns = new Semaphore(spawnConcurrency);
+
+    /**
+     * A slot among the processes starting at the same time, given back once.
+     */
+    private record Slot(Semaphore semaphore, AtomicBoolean released) {
+        static Slot acquire(Logger out) {
+            var semaphore = spawns;
+            if (!semaphore.tryAcquire()) {
+                out.info("Waiting for other kubectl processes to start");
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return new Slot(semaphore, new AtomicBoolean());
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * A tunnel's part of a shared process.
+     */
+    final class Member {
+        private final Tunnel tunnel;
+
+        private Member(Tunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        Optional<ProcessHandle> process() {
+            return Optional.ofNullable(process).filter(ProcessHandle::isAlive);
+        }
+
+        /**
+         * Where kubectl writes its output, without the extension, if it writes to files.
+         */
+        Optional<Path> output() {
+            return Optional.ofNullable(output);
+        }
+
+        void leave() {
+            KubectlProcess.this.leave(this);
+        }
+
+        /**
+         * Replaces kubectl with a new one for all members.
+         */
+        void replace() {
+            KubectlProcess.this.replace();
+        }
+
+        /**
+         * Starts kubectl again for all members if it exited, or does nothing if another member
+         * already did.
+         */
+        void rejoin() {
+            KubectlProcess.this.rejoin();
+        }
+
+        /**
+         * Stops kubectl as if it had exited on its own, like when a tunnel sharing it fails a check.
+         */
+        void fail() {
+            var p = process;
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
+    private final String key;
+    private final Tunnel first;
+    private final Logger out;
+    private final Object applying = new Object();
+    private final List<Member> members = new ArrayList<>();
+    private volatile ProcessHandle process;
+    private volatile Path output;
+    private List<Member> spawned = List.of();
+    // The local ports kubectl forwards for members, learned from its output
+    private final Map<Member, Integer> forwarded = new HashMap<>();
+    // Ports kubectl still forwards for relayed tunnels that left, by destination port
+    private final Map<String, Integer> vacant = new HashMap<>();
+    private AsyncInputStreamReader outputReader;
+    private AsyncInputStreamReader errorReader;
+    private boolean scheduled = false;
+    // kubectl exited on its own and waits for a member to restart it
+    private boolean down = false;
+    private Slot starting;
+
+    private KubectlProcess(String key, Tunnel first) {
+        this.key = key;
+        this.first = first;
+        this.out = (Logger) LoggerFactory.getLogger("tunnel." + first.getContext() + "." + first.getTarget());
+    }
+
+    /**
+     * Whether tunnels to the same target share a kubectl process. Only affects tunnels started
+     * after the change.
+     */
+    static void setCoalesce(boolean coalesce) {
+        KubectlProcess.coalesce = coalesce;
+    }
+
+    /**
+     * How many kubectl processes may start at the same time. Processes already starting keep
+     * their slots.
+     */
+    static synchronized void setSpawnConcurrency(int concurrency) {
+        if (spawnConcurrency != concurrency) {
+            spawnConcurrency = concurrency;
+            spawns = new Semaphore(concurrency);
+        }
+    }
+
+    /**
+     * Asks every kubectl to exit, and keeps tunnels from restarting the ones that do or starting
+     * new ones, since tunnellen is going away.
+     *
+     * @return the processes that were asked to exit
+     */
+    static List<ProcessHandle> shutdown() {
+        shuttingDown = true;
+        var handles = handles();
+        handles.forEach(ProcessHandle::destroy);
+        return handles;
+    }
+
+    /**
+     * The kubectl processes running now, started or adopted.
+     */
+    static List<ProcessHandle> handles() {
+        synchronized (processes) {
+            return processes.values().stream().map(p -> p.process).filter(Objects::nonNull).toList();
+        }
+    }
+
+    /**
+     * Where kubectl writes its output from now on, or null for pipes.
+     */
+    static void setOutputDirectory(Path directory) {
+        KubectlProcess.outputDirectory = directory;
+    }
+
+    /**
+     * Adds the tunnel to the process for its target, starting or replacing it shortly.
+     */
+    static Member join(Tunnel tunnel) {
+        synchronized (processes) {
+            var key = key(tunnel);
+            var shared = coalesce && !tunnel.isLazy();
+            var process = shared ? processes.get(key) : null;
+            if (process != null && !process.accepts(tunnel)) {
+                process = null;
+            }
+            if (process == null) {
+                // A tunnel that can't share gets a process of its own
+                key = shared && !processes.containsKey(key) ? key : key + "|" + tunnel.getId();
+                process = new KubectlProcess(key, tunnel);
+                processes.put(key, process);
+            }
+            return process.add(tunnel);
+        }
+    }
+
+    /**
+     * Adds the tunnel to a kubectl left running by an earlier run of tunnellen, which is already
+     * forwarding its port. Tunnels adopting the same process share it again.
+     *
+     * @param output where the process writes its output, without the extension
+     */
+    static Member adopt(Tunnel tunnel, ProcessHandle handle, Path output) {
+        synchronized (processes) {
+            var process = processes.values().stream().filter(p -> handle.equals(p.process)).findFirst().orElse(null);
+            if (process == null) {
+                var key = key(tunnel);
+                key = processes.containsKey(key) ? key + "|" + tunnel.getId() : key;
+                process = new KubectlProcess(key, tunnel);
+                processes.put(key, process);
+                process.watch(handle, output);
+            }
+            return process.adopted(tunnel);
+        }
+    }
+
+    private static String key(Tunnel tunnel) {
+        return String.join("|", tunnel.getContext(), Objects.toString(tunnel.getNamespace()), tunnel.getTarget(), String.valueOf(tunnel.isRelay()));
+    }
+
+    private synchronized void watch(ProcessHandle handle, Path output) {
+        process = handle;
+        this.output = output;
+        try {
+            // Only what it writes from now on, the rest was logged by the run that started it
+            outputReader = new AsyncInputStreamReader(new TailInputStream(file(output, "out"), true, handle::isAlive), line -> handleOutput(handle, line));
+            errorReader = new AsyncInputStreamReader(new TailInputStream(file(output, "err"), true, handle::isAlive), this::handleError);
+        } catch (IOException e) {
+            this.out.debug("Could not follow the output of kubectl: {}", e.getMessage());
+        }
+        handle.onExit().thenAcceptAsync(h -> onExit(h, -1), VIRTUAL_THREADS);
+    }
+
+    private synchronized Member adopted(Tunnel tunnel) {
+        var member = new Member(tunnel);
+        members.add(member);
+        var all = new ArrayList<>(spawned);
+        all.add(member);
+        spawned = List.copyOf(all);
+        return member;
+    }
+
+    /**
+     * Whether the tunnel can be told apart from the members in kubectl's output.
+     */
+    private synchronized boolean accepts(Tunnel tunnel) {
+        return members.stream().map(m -> m.tunnel).noneMatch(t -> t.isRelay()
+                ? t.getDestinationPort().equals(tunnel.getDestinationPort())
+                : t.getLocalPort() == tunnel.getLocalPort());
+    }
+
+    private synchronized Member add(Tunnel tunnel) {
+        var member = new Member(tunnel);
+        members.add(member);
+        var port = tunnel.isRelay() && process != null && !scheduled ? vacant.remove(tunnel.getDestinationPort()) : null;
+        if (port != null) {
+            // kubectl still forwards the port, the tunnel takes it up once it is done starting
+            var all = new ArrayList<>(spawned);
+            all.add(member);
+            spawned = List.copyOf(all);
+            forwarded.put(member, port);
+            VIRTUAL_THREADS.execute(() -> tunnel.resumed(member, port));
+        } else {
+            schedule();
+        }
+        return member;
+    }
+
+    private void leave(Member member) {
+        ProcessHandle last = null;
+        synchronized (processes) {
+            synchronized (this) {
+                if (!members.remove(member)) {
+                    return;
+                }
+                var port = forwarded.remove(member);
+                if (members.isEmpty()) {
+                    processes.remove(key);
+                    last = process;
+                    process = null;
+                    forwarded.clear();
+                    vacant.clear();
+                    release();
+                } else if (member.tunnel.isRelay() && port != null && process != null && !scheduled) {
+                    vacant.put(member.tunnel.getDestinationPort(), port);
+                    spawned = spawned.stream().filter(m -> m != member).toList();
+                } else if (!down) {
+                    schedule();
+                }
+            }
+        }
+        // The last tunnel to leave waits for kubectl to exit, so its port is free when it returns
+        if (last != null) {
+            stop(last);
+        }
+    }
+
+    private synchronized void replace() {
+        down = false;
+        schedule();
+    }
+
+    private synchronized void rejoin() {
+        if (down) {
+            down = false;
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            CompletableFuture.delayedExecutor(SETTLE.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS).execute(this::apply);
+        }
+    }
+
+    /**
+     * Replaces kubectl with one that forwards the ports of the current members.
+     */
+    private void apply() {
+        // Waits for a slot before taking the lock, so the carrier thread is free meanwhile
+        var slot = Slot.acquire(out);
+        synchronized (applying) {
+            ProcessHandle old;
+            List<Member> paused;
+            synchronized (this) {
+                scheduled = false;
+                old = process;
+                process = null;
+                forwarded.clear();
+                vacant.clear();
+                paused = List.copyOf(spawned);
+                release();
+            }
+            if (old != null) {
+                paused.forEach(m -> m.tunnel.paused(m));
+                stop(old);
+            }
+
+            List<Member> failed;
+            synchronized (this) {
+                if (members.isEmpty() || shuttingDown) {
+                    if (slot != null) {
+                        slot.release();
+                    }
+                    return;
+                }
+                try {
+                    down = false;
+                    spawn(List.copyOf(members));
+                    starting = slot;
+                    if (slot != null) {
+                        CompletableFuture.delayedExecutor(SPAWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS).execute(slot::release);
+                    }
+                    return;
+                } catch (IOException e) {
+                    out.error("Could not start kubectl: {}", e.getMessage());
+                    down = true;
+                    failed = List.copyOf(members);
+                    if (slot != null) {
+                        slot.release();
+                    }
+                }
+            }
+            failed.forEach(m -> m.tunnel.exited(m, -1));
+        }
+    }
+
+    private void spawn(List<Member> members) throws IOException {
+        var relay = first.isRelay();
+        var cmd = new ArrayList<>(List.of(
+                "kubectl",
+                "--context=" + first.getContext(),
+                "port-forward",
+                "--address", relay ? "127.0.0.1" : "0.0.0.0",
+                "--namespace", Optional.ofNullable(first.getNamespace()).orElse("default"),
+                first.getTarget()));
+        members.forEach(m -> cmd.add((relay ? "" : String.valueOf(m.tunnel.getLocalPort())) + ":" + m.tunnel.getDestinationPort()));
+
+        var builder = new ProcessBuilder(cmd);
+        var directory = outputDirectory;
+        Path output = null;
+        if (directory != null) {
+            output = directory.resolve("kubectl-" + ProcessHandle.current().pid() + "-" + outputs.incrementAndGet());
+            builder.redirectOutput(file(output, "out").toFile()).redirectError(file(output, "err").toFile());
+        }
+        var p = builder.start();
+        var handle = p.toHandle();
+        process = handle;
+        this.output = output;
+        spawned = members;
+        if (members.size() > 1) {
+            out.info("Started kubectl for {} tunnels", members.size());
+        }
+        var stdout = output != null ? new TailInputStream(file(output, "out"), false, p::isAlive) : p.getInputStream();
+        var stderr = output != null ? new TailInputStream(file(output, "err"), false, p::isAlive) : p.getErrorStream();
+        outputReader = new AsyncInputStreamReader(stdout, line -> handleOutput(handle, line));
+        errorReader = new AsyncInputStreamReader(stderr, this::handleError);
+        p.onExit().thenAcceptAsync(e -> onExit(handle, e.exitValue()), VIRTUAL_THREADS);
+    }
+
+    private static Path file(Path output, String extension) {
+        return output.resolveSibling(output.getFileName() + "." + extension);
+    }
+
+    private void stop(ProcessHandle proc) {
+        if (proc.isAlive()) {
+            proc.destroy();
+        }
+        AsyncInputStreamReader output;
+        AsyncInputStreamReader error;
+        Path files;
+        synchronized (this) {
+            output = outputReader;
+            error = errorReader;
+            files = this.output;
+        }
+        if (output != null) {
+            output.stop();
+            error.stop();
+        }
+        try {
+            proc.onExit().get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            out.warn("kubectl did not exit: {}", e.getMessage());
+        }
+        deleteOutput(files);
+    }
+
+    private void deleteOutput(Path output) {
+        if (output != null) {
+            try {
+                Files.deleteIfExists(file(output, "out"));
+                Files.deleteIfExists(file(output, "err"));
+            } catch (IOException e) {
+                out.debug("Could not delete kubectl output: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void handleOutput(ProcessHandle p, String line) {
+        out.info(line);
+        spawned().forEach(m -> m.tunnel.output(line, false));
+        var matcher = FORWARDING.matcher(line);
+        if (!matcher.find()) {
+            return;
+        }
+        var localPort = Integer.parseInt(matcher.group(2));
+        var remotePort = matcher.group(3);
+        Member member;
+        synchronized (this) {
+            if (p != process) {
+                return;
+            }
+            release();
+            member = spawned.stream()
+                    .filter(m -> m.tunnel.isRelay() ? m.tunnel.getDestinationPort().equals(remotePort) : m.tunnel.getLocalPort() == localPort)
+                    .findFirst()
+                    // A named remote port is printed as a number, which only works out with a single port
+                    .orElse(spawned.size() == 1 ? spawned.get(0) : null);
+            if (member != null) {
+                forwarded.put(member, localPort);
+            }
+        }
+        if (member != null) {
+            member.tunnel.forwarding(member, localPort);
+        } else {
+            log.debug("No tunnel for {}", line);
+        }
+    }
+
+    private void handleError(String line) {
+        out.warn(line);
+        spawned().forEach(m -> m.tunnel.output(line, true));
+    }
+
+    /**
+     * Gives back the slot of the starting process, if it still has it.
+     */
+    private synchronized void release() {
+        if (starting != null) {
+            starting.release();
+            starting = null;
+        }
+    }
+
+    private synchronized List<Member> spawned() {
+        return spawned;
+    }
+
+    /**
+     * @param exitValue the exit code, or -1 for an adopted process whose exit code is unknown
+     */
+    private void onExit(ProcessHandle exited, int exitValue) {
+        List<Member> affected;
+        Path files;
+        synchronized (this) {
+            if (exited != process) {
+                // Stopped or replaced on purpose
+                return;
+            }
+            process = null;
+            down = true;
+            forwarded.clear();
+            vacant.clear();
+            files = output;
+            affected = List.copyOf(spawned);
+            release();
+        }
+        deleteOutput(files);
+        if (!shuttingDown) {
+            affected.forEach(m -> m.tunnel.exited(m, exitValue));
+        }
+    }
+}
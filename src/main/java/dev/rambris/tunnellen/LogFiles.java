@@ -0,0 +1,120 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the {@link TunnelLog} of every tunnel to a file of its own, {@code <id>.log} in the
+ * configured directory. Lines are queued and written by a single thread, a batch at a time with
+ * one write per file, so whoever appends a line never waits for the disk. When the queue is full
+ * lines are dropped and the number dropped is written to the file of the tunnel they belonged to.
+ * <p>
+ * A file that grows past the maximum size is moved to {@code <id>.log.1}, replacing the one moved
+ * there before.
+ */
+class LogFiles {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(LogFiles.class);
+    private static final int QUEUE_SIZE = 8192;
+    private static final int BATCH_SIZE = 1024;
+
+    /**
+     * @param maxSize bytes a file may grow to before it is rolled
+     */
+    record Settings(Path directory, long maxSize) {
+    }
+
+    private record Entry(String id, TunnelLog.Line line) {
+    }
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    // Lines dropped since the last batch, by tunnel
+    private static final Map<String, AtomicLong> dropped = new ConcurrentHashMap<>();
+    private static volatile Settings settings = null;
+    private static Thread writer = null;
+
+    /**
+     * Starts or stops writing files, or moves them somewhere else.
+     *
+     * @param settings where to write, or null to stop writing
+     */
+    static synchronized void configure(Settings settings) {
+        if (settings != null) {
+            try {
+                Files.createDirectories(settings.directory());
+            } catch (IOException e) {
+                log.warn("Could not create {}, not writing tunnel logs: {}", settings.directory(), e.getMessage());
+                settings = null;
+            }
+        }
+        LogFiles.settings = settings;
+        if (settings != null && writer == null) {
+            writer = Thread.ofVirtual().name("log-files").start(LogFiles::run);
+        }
+    }
+
+    static void write(String id, TunnelLog.Line line) {
+        if (settings != null && !queue.offer(new Entry(id, line))) {
+            dropped.computeIfAbsent(id, i -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    private static void run() {
+        var batch = new ArrayList<Entry>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            var current = settings;
+            if (current != null) {
+                write(current, batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void write(Settings settings, ArrayList<Entry> batch) {
+        var files = new LinkedHashMap<String, StringBuilder>();
+        for (var entry : batch) {
+            files.computeIfAbsent(entry.id(), id -> new StringBuilder()).append(entry.line().format()).append('\n');
+        }
+        var total = 0L;
+        for (var id : List.copyOf(dropped.keySet())) {
+            var lost = dropped.remove(id).get();
+            total += lost;
+            files.computeIfAbsent(id, i -> new StringBuilder()).append("(").append(lost).append(" lines dropped)\n");
+        }
+        if (total > 0) {
+            log.warn("Tunnel logs are not keeping up, dropped {} lines", total);
+        }
+        files.forEach((id, text) -> {
+            var file = settings.directory().resolve(id + ".log");
+            var bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                if (Files.exists(file) && Files.size(file) + bytes.length > settings.maxSize()) {
+                    Files.move(file, settings.directory().resolve(id + ".log.1"), StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.write(file, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                log.debug("Could not write {}: {}", file, e.getMessage());
+            }
+        });
+    }
+}
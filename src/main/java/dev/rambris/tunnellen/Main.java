@@ -10,16 +10,28 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Objects;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 public class Main {
     private static final Logger log = (Logger) LoggerFactory.getLogger(Main.class);
     private static Configuration config;
+    private static final TunnelRegistry registry = new TunnelRegistry();
     private static KeepAlive keepAlive;
+    private static Reconciler reconciler;
     private static Web web;
+    private static StateStore stateStore;
 
+    private static final int RECONCILE_PARALLELISM = 8;
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
     private static int DEFAULT_PORT = 3000;
     private static File CONFIG_FILE = new File("forwards.yaml");
+    private static boolean WAIT_READY = false;
+    private static Path STATE_DIR = null;
 
     static Version VERSION = new Version();
 
@@ -27,35 +39,107 @@ public class Main {
         log.info("Starting tunnellen version {}", VERSION.getVersion());
         commandLine(args);
         config = ConfigurationRepository.loadConfig(CONFIG_FILE, DEFAULT_PORT);
+        KubectlProcess.setCoalesce(config.coalesce());
+        LogFiles.configure(config.logFiles());
+        KubectlProcess.setSpawnConcurrency(config.spawnConcurrency());
         keepAlive = new KeepAlive(config.keepAliveInterval());
+        registry.addAll(config.portForwards());
+        reconciler = new Reconciler(registry, keepAlive, RECONCILE_PARALLELISM);
+        var previous = openStateStore();
 
-        web = new Web(config);
+        web = new Web(config, registry);
         web.start();
 
-        config.portForwards().forEach(tun -> {
-            if (tun.isStartOnStartup()) {
-                tun.start();
-                keepAlive.addTunnel(tun);
-            }
-        });
+        keepAlive.start();
 
-        log.info("Listening on http://127.0.0.1:{}/. Ctrl-C to stop.", config.port());
+        var startup = new Startup(keepAlive, config.startupConcurrency());
+        // Tunnels started by hand last time come back too
+        var onStartup = new ArrayList<Tunnel>();
+        var restoring = registry.all().stream().filter(t -> t.opensOnStartup() || previous.containsKey(t.getId())).toList();
+        var adopted = adopt(restoring, previous, onStartup);
+        if (!previous.isEmpty()) {
+            log.info("Restoring {} tunnels from the last run, {} with kubectl still running", restoring.size(), restoring.size() - onStartup.size());
+        }
+        if (stateStore != null) {
+            stateStore.deleteOutputs(adopted);
+            stateStore.start();
+        }
+        if (WAIT_READY) {
+            startup.run(onStartup).log();
+        } else {
+            Thread.ofVirtual().name("startup").start(() -> {
+                try {
+                    startup.run(onStartup).log();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
 
-        keepAlive.start();
+        log.info("Listening on http://127.0.0.1:{}/. Ctrl-C to stop.", config.port());
 
         FileWatcher.onFileChange(CONFIG_FILE.toPath(), Main::reloadConfig);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("Shutting down");
+            if (stateStore != null) {
+                stateStore.close();
+            }
             keepAlive.stop();
             log.info("Stopping server");
             web.stop(0);
             log.info("Stopping tunnels");
-            config.portForwards().forEach(Tunnel::stop);
+            new Shutdown(SHUTDOWN_TIMEOUT).run(registry.all()).log();
         }));
 
     }
 
+    /**
+     * Opens the state of the last run and has kubectl write its output next to it.
+     *
+     * @return the tunnels that were running at the end of the last run, by id
+     */
+    private static Map<String, StateStore.Entry> openStateStore() {
+        try {
+            stateStore = new StateStore(Optional.ofNullable(STATE_DIR).orElseGet(() -> StateStore.defaultDirectory(CONFIG_FILE)), registry);
+        } catch (IOException e) {
+            log.warn("Could not open state directory, tunnels started by hand won't be restored: {}", e.getMessage());
+            return Map.of();
+        }
+        KubectlProcess.setOutputDirectory(stateStore.getDirectory());
+        return stateStore.load();
+    }
+
+    /**
+     * Lets the tunnels take over kubectl processes of the last run that are still forwarding for
+     * them. The rest are left to be started, and processes nobody took over are stopped so they
+     * don't hold on to ports.
+     *
+     * @return the output files of the adopted processes
+     */
+    private static List<Path> adopt(List<Tunnel> tunnels, Map<String, StateStore.Entry> previous, List<Tunnel> rest) {
+        var adopted = new ArrayList<Path>();
+        for (var tunnel : tunnels) {
+            var entry = previous.get(tunnel.getId());
+            var process = Optional.ofNullable(entry).flatMap(StateStore.Entry::process);
+            if (process.isPresent() && tunnel.adopt(process.get(), entry.port(), entry.output())) {
+                keepAlive.addTunnel(tunnel);
+                adopted.add(entry.output());
+            } else {
+                rest.add(tunnel);
+            }
+        }
+        previous.values().stream()
+                .filter(e -> !adopted.contains(e.output()))
+                .flatMap(e -> e.process().stream())
+                .distinct()
+                .forEach(p -> {
+                    log.info("Stopping kubectl with pid {} left by the last run", p.pid());
+                    p.destroy();
+                });
+        return adopted;
+    }
+
     private static void commandLine(String[] args) throws ParseException {
         var parser = new DefaultParser();
         var options = new Options();
@@ -74,51 +158,56 @@ public class Main {
                 .type(File.class)
                 .build();
 
+        var waitReadyOption = Option.builder()
+                .longOpt("wait-ready")
+                .desc("Start the tunnels that start on startup before anything else and wait until they are ready")
+                .build();
+
+        var stateDirOption = Option.builder()
+                .longOpt("state-dir")
+                .hasArg(true)
+                .type(File.class)
+                .desc("Where to keep the state of the running tunnels between runs")
+                .build();
+
         options
                 .addOption(portOption)
-                .addOption(configFileOption);
+                .addOption(configFileOption)
+                .addOption(waitReadyOption)
+                .addOption(stateDirOption);
 
         var commandLine = parser.parse(options, args);
 
         DEFAULT_PORT = commandLine.getParsedOptionValue(portOption, DEFAULT_PORT);
         CONFIG_FILE = commandLine.getParsedOptionValue(configFileOption, CONFIG_FILE);
+        WAIT_READY = commandLine.hasOption(waitReadyOption);
+        STATE_DIR = Optional.ofNullable((File) commandLine.getParsedOptionValue(stateDirOption)).map(File::toPath).orElse(null);
     }
 
 
     static void stopTunnel(String id) {
-        config.portForwards().stream().filter(t -> t.getId().equals(id)).forEach(tunnel -> {
+        registry.get(id).ifPresent(tunnel -> {
             keepAlive.removeTunnel(tunnel);
             tunnel.stop();
         });
     }
 
     static void startTunnel(String id) {
-        config.portForwards().stream().filter(t -> t.getId().equals(id) && !t.isStarted()).forEach(tunnel -> {
+        registry.get(id).filter(t -> !t.isStarted()).ifPresent(tunnel -> {
             tunnel.start();
             keepAlive.addTunnel(tunnel);
         });
     }
 
-    static void addTunnel(Tunnel tun) {
-        if (config.portForwards().stream().anyMatch(t -> t.getId().equals(tun.getId()))) {
-            log.error("Tunnel with id {} already exists", tun.getId());
-            return;
-        }
-        config.portForwards().add(tun);
-
-        if (tun.isStartOnStartup()) {
-            tun.start();
-            keepAlive.addTunnel(tun);
-        }
-    }
-
-    static void removeTunnel(String id) {
-        if (config.portForwards().stream().noneMatch(t -> t.getId().equals(id))) {
-            log.error("Tunnel with id {} does not exist", id);
-            return;
-        }
-        stopTunnel(id);
-        config.portForwards().removeIf(t -> t.getId().equals(id));
+    static void restartTunnel(String id) {
+        registry.get(id).ifPresent(tunnel -> {
+            if (tunnel.isStarted()) {
+                tunnel.restart();
+            } else {
+                tunnel.start();
+                keepAlive.addTunnel(tunnel);
+            }
+        });
     }
 
     static void reloadConfig() {
@@ -126,45 +215,29 @@ public class Main {
             log.info("Config changed. Reloading");
             var newConfig = ConfigurationRepository.loadConfig(CONFIG_FILE, DEFAULT_PORT);
 
-            config.portForwards().stream().filter(tun -> !newConfig.portForwards().contains(tun)).filter(Objects::nonNull).toList().forEach(tun -> {
-                if (!newConfig.portForwards().contains(tun)) {
-                    removeTunnel(tun.getId());
-                    log.info("Removing tunnel {}", tun);
-                }
-            });
-
-            newConfig.portForwards().stream().filter(tun -> !config.portForwards().contains(tun)).filter(Objects::nonNull).toList().forEach(tun -> {
-                if (!config.portForwards().contains(tun)) {
-                    addTunnel(tun);
-                    log.info("Adding tunnel {}", tun);
-                }
-            });
-
-
-            if (config.port() != newConfig.port()) {
-                log.info("Port changed. Restarting server");
-                config = config.withPort(newConfig.port());
-                web.stop(0);
-                web = new Web(config);
-                web.start();
-            }
+            KubectlProcess.setCoalesce(newConfig.coalesce());
+            LogFiles.configure(newConfig.logFiles());
+            KubectlProcess.setSpawnConcurrency(newConfig.spawnConcurrency());
+            var plan = reconciler.reconcile(newConfig.portForwards());
+            log.info("Tunnels reconciled: {}", plan);
 
             if (config.keepAliveInterval().compareTo(newConfig.keepAliveInterval()) != 0) {
                 log.info("Keepalive interval changed. Restarting keepalive");
-                config = config.withKeepAliveInterval(newConfig.keepAliveInterval());
                 keepAlive.setKeepAliveInterval(newConfig.keepAliveInterval());
             }
 
-            if (config.refreshInterval().compareTo(newConfig.refreshInterval()) != 0) {
-                log.info("Refresh interval changed. Restarting server");
-                config = config.withRefreshInterval(newConfig.refreshInterval());
+            if (config.port() != newConfig.port() || config.backlog() != newConfig.backlog()) {
+                log.info("Port or backlog changed. Restarting server");
                 web.stop(0);
-                web = new Web(config);
+                web = new Web(newConfig, registry);
                 web.start();
+            } else {
+                web.setConfig(newConfig);
             }
+            config = newConfig;
         } catch (IOException | InterruptedException ex) {
             log.error(ex.getMessage());
         }
     }
 
-}
\ No newline at end of file
+}
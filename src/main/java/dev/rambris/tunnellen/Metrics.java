@@ -0,0 +1,147 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Renders tunnel metrics in the Prometheus text exposition format. Everything is read from
+ * counters the tunnels keep up to date anyway, so a scrape takes no locks and does no I/O.
+ */
+class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder out = new StringBuilder();
+
+    static String render(Collection<Tunnel> tunnels) {
+        var metrics = new Metrics();
+        metrics.out.append("# HELP tunnellen_info Version of tunnellen\n# TYPE tunnellen_info gauge\n");
+        metrics.out.append("tunnellen_info{version=\"").append(escape(Main.VERSION.getVersion())).append("\"} 1\n");
+
+        metrics.family("tunnellen_tunnel_state", "gauge", "Current state of the tunnel, 1 for the active state", tunnels, t -> {
+            for (var state : Tunnel.State.values()) {
+                metrics.sample("tunnellen_tunnel_state", t, "state", state.name().toLowerCase(), t.getState() == state ? 1 : 0);
+            }
+        });
+        metrics.family("tunnellen_tunnel_restarts_total", "counter", "Restarts of kubectl", tunnels,
+                t -> metrics.sample("tunnellen_tunnel_restarts_total", t, t.getRestarts()));
+        metrics.family("tunnellen_tunnel_probe_failures_total", "counter", "Failed health probes", tunnels,
+                t -> metrics.sample("tunnellen_tunnel_probe_failures_total", t, t.getProbeFailures()));
+        metrics.family("tunnellen_tunnel_probe_latency_seconds", "histogram", "Latency of successful health probes", tunnels,
+                t -> metrics.histogram("tunnellen_tunnel_probe_latency_seconds", t, t.getProbeLatency()));
+        metrics.family("tunnellen_tunnel_last_success_age_seconds", "gauge", "Seconds since the last successful health probe", tunnels, t -> {
+            var lastCheck = t.getLastCheck();
+            if (lastCheck.isAfter(LocalDateTime.MIN)) {
+                metrics.sample("tunnellen_tunnel_last_success_age_seconds", t, Duration.between(lastCheck, LocalDateTime.now()).toMillis() / 1000.0);
+            }
+        });
+        metrics.family("tunnellen_tunnel_connections_total", "counter", "Connections accepted by the relay", tunnels,
+                t -> metrics.sample("tunnellen_tunnel_connections_total", t, t.getTraffic().getTotalConnections()));
+        metrics.family("tunnellen_tunnel_active_connections", "gauge", "Open connections through the relay", tunnels,
+                t -> metrics.sample("tunnellen_tunnel_active_connections", t, t.getTraffic().getActiveConnections()));
+        metrics.family("tunnellen_tunnel_received_bytes_total", "counter", "Bytes from clients to the upstream", tunnels,
+                t -> metrics.sample("tunnellen_tunnel_received_bytes_total", t, t.getTraffic().getBytesIn()));
+        metrics.family("tunnellen_tunnel_sent_bytes_total", "counter", "Bytes from the upstream to clients", tunnels,
+                t -> metrics.sample("tunnellen_tunnel_sent_bytes_total", t, t.getTraffic().getBytesOut()));
+        metrics.family("tunnellen_tunnel_cache_requests_total", "counter", "Proxied GET requests by how the response cache answered them", tunnels,
+                t -> t.getCache().ifPresent(c -> {
+                    metrics.sample("tunnellen_tunnel_cache_requests_total", t, "result", "hit", c.getHits());
+                    metrics.sample("tunnellen_tunnel_cache_requests_total", t, "result", "revalidated", c.getRevalidations());
+                    metrics.sample("tunnellen_tunnel_cache_requests_total", t, "result", "miss", c.getMisses());
+                }));
+        metrics.family("tunnellen_tunnel_cache_bytes", "gauge", "Size of the cached responses", tunnels,
+                t -> t.getCache().ifPresent(c -> metrics.sample("tunnellen_tunnel_cache_bytes", t, c.getBytes())));
+        metrics.family("tunnellen_tunnel_pool_transactions_total", "counter", "Transactions run on pooled PostgreSQL connections", tunnels,
+                t -> t.getPooler().ifPresent(p -> metrics.sample("tunnellen_tunnel_pool_transactions_total", t, p.getTransactions())));
+        metrics.family("tunnellen_tunnel_pool_logins_total", "counter", "Logins of pooled PostgreSQL connections to the server", tunnels,
+                t -> t.getPooler().ifPresent(p -> metrics.sample("tunnellen_tunnel_pool_logins_total", t, p.getLogins())));
+        metrics.family("tunnellen_tunnel_queries_total", "counter", "Queries seen on the wire of database tunnels", tunnels,
+                t -> t.getQueries().ifPresent(q -> metrics.sample("tunnellen_tunnel_queries_total", t, q.getQueries())));
+        metrics.family("tunnellen_tunnel_query_errors_total", "counter", "Queries answered with an error", tunnels,
+                t -> t.getQueries().ifPresent(q -> metrics.sample("tunnellen_tunnel_query_errors_total", t, q.getErrors())));
+        metrics.family("tunnellen_tunnel_query_latency_seconds", "histogram", "Latency of queries seen on the wire", tunnels,
+                t -> t.getQueries().ifPresent(q -> metrics.histogram("tunnellen_tunnel_query_latency_seconds", t, q.getLatency())));
+        metrics.family("tunnellen_tunnel_slow_queries_total", "counter", "Queries slower than the slow query threshold", tunnels,
+                t -> t.getQueries().ifPresent(q -> metrics.sample("tunnellen_tunnel_slow_queries_total", t, q.getSlow())));
+        metrics.family("tunnellen_tunnel_slow_query_seconds", "gauge", "Latency of the most recent sampled slow queries, by statement", tunnels,
+                t -> t.getQueries().ifPresent(q -> q.getSamples().forEach(s ->
+                        metrics.sample("tunnellen_tunnel_slow_query_seconds", t, "statement", s.statement(), s.latency().toNanos() / 1e9))));
+        metrics.circuits();
+        metrics.family("tunnellen_tunnel_process_resident_memory_bytes", "gauge", "Resident memory of kubectl at the last keepalive check", tunnels, t -> {
+            if (t.getRssBytes() >= 0) {
+                metrics.sample("tunnellen_tunnel_process_resident_memory_bytes", t, t.getRssBytes());
+            }
+        });
+
+        return metrics.out.toString();
+    }
+
+    /**
+     * The circuit of every context, which is per context rather than per tunnel.
+     */
+    private void circuits() {
+        out.append("# HELP tunnellen_context_circuit_state Circuit of the context, 1 for the current state\n# TYPE tunnellen_context_circuit_state gauge\n");
+        CircuitBreaker.all().forEach((context, circuit) -> {
+            var current = circuit.getState();
+            for (var state : CircuitBreaker.State.values()) {
+                out.append("tunnellen_context_circuit_state{context=\"").append(escape(context))
+                        .append("\",state=\"").append(state.name().toLowerCase()).append("\"} ").append(state == current ? 1 : 0).append('\n');
+            }
+        });
+    }
+
+    private void family(String name, String type, String help, Collection<Tunnel> tunnels, Consumer<Tunnel> samples) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        tunnels.forEach(samples);
+    }
+
+    private void sample(String name, Tunnel t, double value) {
+        sample(name, t, null, null, value);
+    }
+
+    private void sample(String name, Tunnel t, String extraLabel, String extraValue, double value) {
+        out.append(name).append('{');
+        labels(t);
+        if (extraLabel != null) {
+            out.append(',').append(extraLabel).append("=\"").append(escape(extraValue)).append('"');
+        }
+        out.append("} ").append(format(value)).append('\n');
+    }
+
+    private void histogram(String name, Tunnel t, Histogram histogram) {
+        var buckets = histogram.getBuckets();
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+            cumulative += buckets[i];
+            sample(name + "_bucket", t, "le", format(Histogram.BOUNDS[i]), cumulative);
+        }
+        cumulative += buckets[buckets.length - 1];
+        sample(name + "_bucket", t, "le", "+Inf", cumulative);
+        sample(name + "_sum", t, histogram.getSumSeconds());
+        sample(name + "_count", t, cumulative);
+    }
+
+    private void labels(Tunnel t) {
+        out.append("id=\"").append(t.getId())
+                .append("\",group=\"").append(escape(t.getGroup()))
+                .append("\",context=\"").append(escape(t.getContext()))
+                .append("\",target=\"").append(escape(t.getTarget()))
+                .append("\",local_port=\"").append(t.getLocalPort()).append('"');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
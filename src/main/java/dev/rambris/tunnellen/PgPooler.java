@@ -0,0 +1,989 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pools PostgreSQL connections on a tunnel's local port, like pgbouncer in transaction mode.
+ * Clients log in to the pooler, and each of their transactions runs on one of a bounded set of
+ * upstream connections that stay logged in between transactions. Short-lived clients no longer
+ * cost a port-forward stream and a server login each.
+ * <p>
+ * An upstream connection is only lent out for one transaction at a time, so session state does
+ * not carry over between transactions: SET, LISTEN, temporary tables and named prepared
+ * statements. Clients that cache prepared statements, like the JDBC driver, have to be told not
+ * to, for example with prepareThreshold=0.
+ * <p>
+ * Clients authenticate with MD5 against the configured password, which is also what the pooler
+ * logs in upstream with, using SCRAM-SHA-256, MD5 or a cleartext password as the server asks.
+ * Locks are ReentrantLocks rather than monitors, since they are held by virtual threads that block
+ * on sockets.
+ */
+class PgPooler {
+    /**
+     * How many upstream connections there may be for each user and database, how long they are
+     * kept when idle and the password to log in with, or null if the server doesn't ask for one.
+     */
+    record Settings(int size, Duration idleTimeout, String password) {
+        @Override
+        public String toString() {
+            return "Settings[size=" + size + ", idleTimeout=" + idleTimeout + "]";
+        }
+    }
+
+    private static final int PROTOCOL_3 = 196608;
+    private static final int SSL_REQUEST = 80877103;
+    private static final int GSSENC_REQUEST = 80877104;
+    private static final int CANCEL_REQUEST = 80877102;
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final Duration ACQUIRE_TIMEOUT = Duration.ofSeconds(30);
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Logger log;
+    private final int localPort;
+    private final InetSocketAddress upstream;
+    private final Settings settings;
+    private final Map<Map<String, String>, Pool> pools = new ConcurrentHashMap<>();
+    // Clients are given keys of their own to cancel with, which are mapped to the session here
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong logins = new AtomicLong();
+    private volatile ServerSocket server;
+    private volatile Thread sweeper;
+
+    /**
+     * @param upstream where the server is reached, the tunnel's relay
+     */
+    PgPooler(Logger log, int localPort, InetSocketAddress upstream, Settings settings) {
+        this.log = log;
+        this.localPort = localPort;
+        this.upstream = upstream;
+        this.settings = settings;
+    }
+
+    void open() throws IOException {
+        var server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(localPort));
+        this.server = server;
+        Thread.ofVirtual().name("pgpool-" + localPort).start(this::accept);
+        sweeper = Thread.ofVirtual().name("pgpool-idle-" + localPort).start(this::sweep);
+        log.info("Pooling PostgreSQL connections on port {}, up to {} per user and database", localPort, settings.size());
+    }
+
+    void close() {
+        var server = this.server;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                log.debug("Error closing pooler listener: {}", e.getMessage());
+            }
+        }
+        var sweeper = this.sweeper;
+        if (sweeper != null) {
+            sweeper.interrupt();
+        }
+        pools.values().forEach(Pool::close);
+        sessions.values().forEach(Session::close);
+    }
+
+    /**
+     * Transactions run on pooled connections so far.
+     */
+    long getTransactions() {
+        return transactions.get();
+    }
+
+    /**
+     * Upstream logins so far, one per upstream connection opened.
+     */
+    long getLogins() {
+        return logins.get();
+    }
+
+    private void accept() {
+        var server = this.server;
+        while (!server.isClosed()) {
+            try {
+                var socket = server.accept();
+                Thread.ofVirtual().name("pgpool").start(() -> new Session(socket).run());
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.warn("Error accepting connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void sweep() {
+        var interval = Duration.ofMillis(Math.max(1000, settings.idleTimeout().toMillis() / 2));
+        try {
+            while (!server.isClosed()) {
+                Thread.sleep(interval);
+                pools.values().forEach(Pool::closeExpired);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * A message of the protocol, after the startup packet.
+     */
+    record Message(byte type, byte[] body) {
+        static Message read(DataInputStream in) throws IOException {
+            var type = in.read();
+            if (type < 0) {
+                return null;
+            }
+            var length = in.readInt();
+            if (length < 4 || length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Bad message length " + length);
+            }
+            var body = in.readNBytes(length - 4);
+            if (body.length < length - 4) {
+                throw new EOFException("Connection closed in the middle of a message");
+            }
+            return new Message((byte) type, body);
+        }
+
+        static Message of(char type, byte[] body) {
+            return new Message((byte) type, body);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(type);
+            out.writeInt(body.length + 4);
+            out.write(body);
+        }
+
+        /**
+         * Whether the server answers with ReadyForQuery, ending what the client asked for.
+         */
+        boolean isSync() {
+            return type == 'Q' || type == 'S' || type == 'F';
+        }
+
+        /**
+         * Whether this is part of an extended query, which has to end with a Sync on the same
+         * connection.
+         */
+        boolean isExtended() {
+            return type == 'P' || type == 'B' || type == 'D' || type == 'E' || type == 'C' || type == 'H';
+        }
+    }
+
+    /**
+     * The upstream connections for one user, database and set of startup parameters.
+     */
+    private class Pool {
+        private final Map<String, String> parameters;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        // Most recently used last
+        private final Deque<Backend> idle = new ArrayDeque<>();
+        private int open = 0;
+        private List<Message> status;
+
+        Pool(Map<String, String> parameters) {
+            this.parameters = parameters;
+        }
+
+        Backend acquire() throws IOException {
+            var deadline = System.nanoTime() + ACQUIRE_TIMEOUT.toNanos();
+            lock.lock();
+            try {
+                while (true) {
+                    Backend backend;
+                    while ((backend = idle.pollLast()) != null) {
+                        if (!backend.broken) {
+                            return backend;
+                        }
+                    }
+                    if (open < settings.size()) {
+                        open++;
+                        break;
+                    }
+                    var left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        throw new IOException("Timed out waiting for a pooled connection");
+                    }
+                    available.awaitNanos(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } finally {
+                lock.unlock();
+            }
+            try {
+                var backend = new Backend(this);
+                lock.lock();
+                try {
+                    if (status == null) {
+                        status = backend.status;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                return backend;
+            } catch (IOException e) {
+                discard(null);
+                throw e;
+            }
+        }
+
+        /**
+         * The ParameterStatus messages a server sends after login, for clients logging in to the
+         * pooler. Opens a connection the first time to get them.
+         */
+        List<Message> status() throws IOException {
+            lock.lock();
+            try {
+                if (status != null) {
+                    return status;
+                }
+            } finally {
+                lock.unlock();
+            }
+            var backend = acquire();
+            release(backend);
+            return backend.status;
+        }
+
+        void release(Backend backend) {
+            if (backend.broken || server.isClosed()) {
+                discard(backend);
+                return;
+            }
+            lock.lock();
+            try {
+                if (!backend.gone) {
+                    backend.idleSince = System.nanoTime();
+                    idle.addLast(backend);
+                    available.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closes a connection that can't be lent out again, or gives up the slot of one that
+         * failed to open if null.
+         */
+        void discard(Backend backend) {
+            lock.lock();
+            try {
+                if (backend == null) {
+                    open--;
+                } else if (!backend.gone) {
+                    backend.gone = true;
+                    open--;
+                    idle.remove(backend);
+                }
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (backend != null) {
+                backend.close();
+            }
+        }
+
+        void closeExpired() {
+            var expired = new ArrayList<Backend>();
+            lock.lock();
+            try {
+                while (!idle.isEmpty() && System.nanoTime() - idle.peekFirst().idleSince >= settings.idleTimeout().toNanos()) {
+                    var backend = idle.pollFirst();
+                    backend.gone = true;
+                    open--;
+                    expired.add(backend);
+                }
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            expired.forEach(Backend::terminate);
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                idle.forEach(Backend::terminate);
+                idle.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A logged in upstream connection. Its reader passes everything the server sends on to the
+     * session it is lent to, and gives it back to the pool when a transaction ends.
+     */
+    private class Backend {
+        private final Pool pool;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Message> status = new ArrayList<>();
+        private int processId;
+        private int secretKey;
+        // Guarded by lock
+        private Session session;
+        private int pending = 0;
+        private boolean partial = false;
+        private volatile boolean broken = false;
+        private volatile boolean closed = false;
+        // Guarded by the pool's lock
+        private boolean gone = false;
+        private long idleSince;
+
+        Backend(Pool pool) throws IOException {
+            this.pool = pool;
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(upstream);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                login();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            logins.incrementAndGet();
+            Thread.ofVirtual().name("pgpool-backend").start(this::read);
+        }
+
+        private void login() throws IOException {
+            var startup = new ByteArrayOutputStream();
+            var body = new DataOutputStream(startup);
+            body.writeInt(PROTOCOL_3);
+            for (var p : pool.parameters.entrySet()) {
+                cstring(body, p.getKey());
+                cstring(body, p.getValue());
+            }
+            body.write(0);
+            out.writeInt(startup.size() + 4);
+            out.write(startup.toByteArray());
+            out.flush();
+
+            var user = pool.parameters.get("user");
+            Scram scram = null;
+            while (true) {
+                var message = Message.read(in);
+                if (message == null) {
+                    throw new EOFException("Server closed the connection during login");
+                }
+                switch (message.type()) {
+                    case 'R' -> {
+                        var data = ByteBuffer.wrap(message.body());
+                        switch (data.getInt()) {
+                            case 0 -> {
+                            }
+                            case 3 -> send(Message.of('p', cstring(password())));
+                            case 5 -> {
+                                var salt = new byte[4];
+                                data.get(salt);
+                                send(Message.of('p', cstring(md5(password(), user, salt))));
+                            }
+                            case 10 -> {
+                                var mechanisms = new String(message.body(), 4, message.body().length - 4, StandardCharsets.UTF_8);
+                                if (!List.of(mechanisms.split("\0")).contains("SCRAM-SHA-256")) {
+                                    throw new IOException("Server offers no supported SASL mechanism: " + mechanisms.replace('\0', ' ').trim());
+                                }
+                                scram = new Scram(password());
+                                var first = scram.clientFirst().getBytes(StandardCharsets.UTF_8);
+                                var initial = new ByteArrayOutputStream();
+                                var initialBody = new DataOutputStream(initial);
+                                cstring(initialBody, "SCRAM-SHA-256");
+                                initialBody.writeInt(first.length);
+                                initialBody.write(first);
+                                send(Message.of('p', initial.toByteArray()));
+                            }
+                            case 11 -> send(Message.of('p', Objects.requireNonNull(scram).clientFinal(rest(data)).getBytes(StandardCharsets.UTF_8)));
+                            case 12 -> Objects.requireNonNull(scram).verify(rest(data));
+                            default -> throw new IOException("Unsupported authentication method " + message.body()[3]);
+                        }
+                    }
+                    case 'S' -> status.add(message);
+                    case 'K' -> {
+                        var data = ByteBuffer.wrap(message.body());
+                        processId = data.getInt();
+                        secretKey = data.getInt();
+                    }
+                    case 'E' -> throw new IOException("Server refused login: " + errorMessage(message));
+                    case 'Z' -> {
+                        return;
+                    }
+                    default -> {
+                        // Notices and the like
+                    }
+                }
+            }
+        }
+
+        private String password() throws IOException {
+            if (settings.password() == null) {
+                throw new IOException("Server asks for a password but the pool has none");
+            }
+            return settings.password();
+        }
+
+        private void send(Message message) throws IOException {
+            message.write(out);
+            out.flush();
+        }
+
+        /**
+         * Lends the connection to a session until its transaction ends.
+         */
+        void lend(Session session) {
+            lock.lock();
+            try {
+                this.session = session;
+                pending = 0;
+                partial = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Writes a message from the session, unless the connection has gone back to the pool in
+         * the meantime.
+         */
+        boolean write(Session from, Message message, boolean flush) throws IOException {
+            lock.lock();
+            try {
+                if (session != from) {
+                    return false;
+                }
+                if (message.isSync()) {
+                    pending++;
+                    partial = false;
+                } else if (message.isExtended()) {
+                    partial = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            message.write(out);
+            if (flush) {
+                out.flush();
+            }
+            return true;
+        }
+
+        private void read() {
+            try {
+                Message message;
+                while ((message = Message.read(in)) != null) {
+                    Session to;
+                    var done = false;
+                    lock.lock();
+                    try {
+                        to = session;
+                        if (message.type() == 'Z' && to != null && --pending <= 0 && !partial && message.body()[0] == 'I') {
+                            // The transaction is over and nothing else is on its way
+                            session = null;
+                            done = true;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (to != null) {
+                        to.send(message, message.type() == 'Z' || in.available() == 0);
+                    }
+                    if (done) {
+                        transactions.incrementAndGet();
+                        pool.release(this);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    log.debug("Pooled connection failed: {}", e.getMessage());
+                }
+            }
+            Session lost;
+            lock.lock();
+            try {
+                broken = true;
+                lost = session;
+                session = null;
+            } finally {
+                lock.unlock();
+            }
+            if (lost != null) {
+                lost.backendLost();
+            }
+            pool.discard(this);
+        }
+
+        /**
+         * Takes the connection back from a session that is gone, closing it unless it was idle.
+         */
+        void reclaim(Session from) {
+            lock.lock();
+            try {
+                if (session != from) {
+                    return;
+                }
+                session = null;
+            } finally {
+                lock.unlock();
+            }
+            // Whatever the session left half done can't be handed to another one
+            pool.discard(this);
+        }
+
+        /**
+         * Cancels the query of the session, if the connection is still lent to it. Once the
+         * transaction is over the connection may run another client's query.
+         */
+        void cancel(Session from) {
+            lock.lock();
+            try {
+                if (session != from) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try (var socket = new Socket()) {
+                socket.connect(upstream);
+                var out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(16);
+                out.writeInt(CANCEL_REQUEST);
+                out.writeInt(processId);
+                out.writeInt(secretKey);
+                out.flush();
+                socket.getInputStream().read();
+            } catch (IOException e) {
+                log.debug("Could not cancel query: {}", e.getMessage());
+            }
+        }
+
+        /**
+         * Logs out and closes an idle connection.
+         */
+        void terminate() {
+            try {
+                send(Message.of('X', new byte[0]));
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            close();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * A client connection.
+     */
+    private class Session {
+        private final Socket socket;
+        private final ReentrantLock writing = new ReentrantLock();
+        private DataInputStream in;
+        private DataOutputStream out;
+        private Pool pool;
+        // Read by the connection cancelling the session, kept after the transaction until the next
+        // message finds the connection back in the pool
+        private volatile Backend backend;
+        private long key;
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                if (!startup()) {
+                    return;
+                }
+                Message message;
+                while ((message = Message.read(in)) != null && message.type() != 'X') {
+                    forward(message);
+                }
+            } catch (IOException e) {
+                log.debug("Pooled client connection failed: {}", e.getMessage());
+            } finally {
+                if (key != 0) {
+                    sessions.remove(key);
+                }
+                var backend = this.backend;
+                if (backend != null) {
+                    backend.reclaim(this);
+                }
+            }
+        }
+
+        /**
+         * Logs the client in to the pooler. Returns false if the connection is done with.
+         */
+        private boolean startup() throws IOException {
+            Map<String, String> parameters;
+            while (true) {
+                var length = in.readInt();
+                if (length < 8 || length > 10000) {
+                    throw new IOException("Bad startup packet length " + length);
+                }
+                var data = ByteBuffer.wrap(in.readNBytes(length - 4));
+                var code = data.getInt();
+                if (code == SSL_REQUEST || code == GSSENC_REQUEST) {
+                    // Plain connections only, the tunnel is encrypted
+                    out.write('N');
+                    out.flush();
+                } else if (code == CANCEL_REQUEST) {
+                    var key = ((long) data.getInt() << 32) | (data.getInt() & 0xffffffffL);
+                    var session = sessions.get(key);
+                    if (session != null) {
+                        session.cancel();
+                    }
+                    return false;
+                } else if (code == PROTOCOL_3) {
+                    parameters = startupParameters(data);
+                    break;
+                } else {
+                    error("FATAL", "0A000", "Unsupported frontend protocol " + (code >> 16) + "." + (code & 0xffff));
+                    return false;
+                }
+            }
+
+            var user = parameters.get("user");
+            if (user == null) {
+                error("FATAL", "28000", "No user name given");
+                return false;
+            }
+            if (settings.password() != null && !authenticate(user)) {
+                error("FATAL", "28P01", "Password authentication failed for user \"" + user + "\"");
+                return false;
+            }
+
+            // Clients with the same startup parameters share connections, apart from the name
+            // they give themselves
+            var poolKey = new TreeMap<>(parameters);
+            poolKey.putIfAbsent("database", user);
+            poolKey.remove("application_name");
+            pool = pools.computeIfAbsent(poolKey, Pool::new);
+            List<Message> status;
+            try {
+                status = pool.status();
+            } catch (IOException e) {
+                error("FATAL", "08006", e.getMessage());
+                return false;
+            }
+
+            do {
+                key = random.nextLong();
+            } while (key == 0 || sessions.putIfAbsent(key, this) != null);
+            writing.lock();
+            try {
+                Message.of('R', new byte[]{0, 0, 0, 0}).write(out);
+                for (var s : status) {
+                    s.write(out);
+                }
+                Message.of('K', ByteBuffer.allocate(8).putLong(key).array()).write(out);
+                Message.of('Z', new byte[]{'I'}).write(out);
+                out.flush();
+            } finally {
+                writing.unlock();
+            }
+            return true;
+        }
+
+        /**
+         * Asks the client for its password, MD5 hashed with a salt of our own, and checks it.
+         */
+        private boolean authenticate(String user) throws IOException {
+            var salt = new byte[4];
+            random.nextBytes(salt);
+            var request = ByteBuffer.allocate(8).putInt(5).put(salt).array();
+            Message.of('R', request).write(out);
+            out.flush();
+            var response = Message.read(in);
+            if (response == null || response.type() != 'p') {
+                return false;
+            }
+            var given = new String(response.body(), 0, Math.max(0, response.body().length - 1), StandardCharsets.UTF_8);
+            var expected = md5(settings.password(), user, salt);
+            return MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends a message on to the upstream connection of the current transaction, borrowing one
+         * if there is none.
+         */
+        private void forward(Message message) throws IOException {
+            // More is on its way, send it all at once
+            var flush = message.isSync() || message.type() == 'H' || in.available() == 0;
+            while (true) {
+                if (backend == null) {
+                    try {
+                        backend = pool.acquire();
+                    } catch (IOException e) {
+                        error("FATAL", "08006", e.getMessage());
+                        throw e;
+                    }
+                    backend.lend(this);
+                }
+                if (backend.write(this, message, flush)) {
+                    return;
+                }
+                // The transaction ended and the connection went back to the pool
+                backend = null;
+            }
+        }
+
+        /**
+         * Sends a message from the server to the client.
+         */
+        void send(Message message, boolean flush) {
+            writing.lock();
+            try {
+                message.write(out);
+                if (flush) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The client is gone, which its own thread notices
+            } finally {
+                writing.unlock();
+            }
+        }
+
+        void cancel() {
+            var backend = this.backend;
+            if (backend != null) {
+                backend.cancel(this);
+            }
+        }
+
+        void backendLost() {
+            error("FATAL", "08006", "Connection to the server was lost");
+            close();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        private void error(String severity, String code, String text) {
+            var body = new ByteArrayOutputStream();
+            body.write('S');
+            body.writeBytes(cstring(severity));
+            body.write('V');
+            body.writeBytes(cstring(severity));
+            body.write('C');
+            body.writeBytes(cstring(code));
+            body.write('M');
+            body.writeBytes(cstring(text));
+            body.write(0);
+            send(Message.of('E', body.toByteArray()), true);
+        }
+    }
+
+    private static Map<String, String> startupParameters(ByteBuffer data) {
+        var parameters = new LinkedHashMap<String, String>();
+        while (data.hasRemaining()) {
+            var name = cstring(data);
+            if (name.isEmpty()) {
+                break;
+            }
+            parameters.put(name, cstring(data));
+        }
+        return parameters;
+    }
+
+    private static String errorMessage(Message error) {
+        var fields = new HashMap<Character, String>();
+        var data = ByteBuffer.wrap(error.body());
+        while (data.hasRemaining()) {
+            var field = (char) data.get();
+            if (field == 0) {
+                break;
+            }
+            fields.put(field, cstring(data));
+        }
+        return fields.getOrDefault('M', "unknown error");
+    }
+
+    /**
+     * The password hash MD5 authentication expects: md5(md5(password + user) + salt).
+     */
+    private static String md5(String password, String user, byte[] salt) {
+        try {
+            var digest = MessageDigest.getInstance("MD5");
+            var inner = HexFormat.of().formatHex(digest.digest((password + user).getBytes(StandardCharsets.UTF_8)));
+            digest.update(inner.getBytes(StandardCharsets.US_ASCII));
+            digest.update(salt);
+            return "md5" + HexFormat.of().formatHex(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The client side of a SCRAM-SHA-256 exchange, without channel binding.
+     */
+    private static class Scram {
+        private final String password;
+        private final String nonce;
+        private byte[] saltedPassword;
+        private String authMessage;
+
+        Scram(String password) {
+            this.password = password;
+            var bytes = new byte[18];
+            random.nextBytes(bytes);
+            this.nonce = Base64.getEncoder().encodeToString(bytes);
+        }
+
+        String clientFirst() {
+            return "n,," + clientFirstBare();
+        }
+
+        private String clientFirstBare() {
+            // The user name is taken from the startup message
+            return "n=,r=" + nonce;
+        }
+
+        String clientFinal(String serverFirst) throws IOException {
+            var attributes = attributes(serverFirst);
+            var serverNonce = attributes.get("r");
+            if (serverNonce == null || !serverNonce.startsWith(nonce)) {
+                throw new IOException("Server sent a bad SCRAM nonce");
+            }
+            try {
+                var salt = Base64.getDecoder().decode(attributes.get("s"));
+                var iterations = Integer.parseInt(attributes.get("i"));
+                var spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+                saltedPassword = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+                var withoutProof = "c=biws,r=" + serverNonce;
+                authMessage = clientFirstBare() + "," + serverFirst + "," + withoutProof;
+                var clientKey = hmac(saltedPassword, "Client Key");
+                var storedKey = MessageDigest.getInstance("SHA-256").digest(clientKey);
+                var signature = hmac(storedKey, authMessage);
+                var proof = new byte[clientKey.length];
+                for (int i = 0; i < proof.length; i++) {
+                    proof[i] = (byte) (clientKey[i] ^ signature[i]);
+                }
+                return withoutProof + ",p=" + Base64.getEncoder().encodeToString(proof);
+            } catch (GeneralSecurityException | IllegalArgumentException | NullPointerException e) {
+                throw new IOException("Bad SCRAM challenge: " + e.getMessage(), e);
+            }
+        }
+
+        void verify(String serverFinal) throws IOException {
+            var attributes = attributes(serverFinal);
+            if (attributes.containsKey("e")) {
+                throw new IOException("SCRAM authentication failed: " + attributes.get("e"));
+            }
+            try {
+                var expected = hmac(hmac(saltedPassword, "Server Key"), authMessage);
+                if (!MessageDigest.isEqual(expected, Base64.getDecoder().decode(Objects.requireNonNullElse(attributes.get("v"), "")))) {
+                    throw new IOException("Server sent a bad SCRAM signature");
+                }
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                throw new IOException("Bad SCRAM signature: " + e.getMessage(), e);
+            }
+        }
+
+        private static Map<String, String> attributes(String message) {
+            var attributes = new HashMap<String, String>();
+            for (var part : message.split(",")) {
+                if (part.length() > 1 && part.charAt(1) == '=') {
+                    attributes.put(part.substring(0, 1), part.substring(2));
+                }
+            }
+            return attributes;
+        }
+
+        private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String rest(ByteBuffer data) {
+        return new String(data.array(), data.position(), data.remaining(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] cstring(String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        var out = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, out, 0, bytes.length);
+        return out;
+    }
+
+    private static void cstring(OutputStream out, String value) throws IOException {
+        out.write(cstring(value));
+    }
+
+    private static String cstring(ByteBuffer data) {
+        var start = data.position();
+        while (data.hasRemaining() && data.get() != 0) {
+            // Find the terminator
+        }
+        var end = data.position() - (data.position() > start && data.get(data.position() - 1) == 0 ? 1 : 0);
+        return new String(data.array(), start, end - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,242 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Forwards a local port to a pod through the apiserver, without kubectl. It listens where kubectl
+ * would and opens a port-forward WebSocket per connection. The pod is looked up when the forward
+ * starts and again whenever a stream to it can't be opened.
+ */
+class PortForward {
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final long CONNECT_TIMEOUT_SECONDS = 15;
+    // How long the pod may go on sending after the client is done
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+    private static final byte DATA = 0;
+    private static final byte ERROR = 1;
+    // Every channel starts with the port number it belongs to
+    private static final int PORT_PREFIX = 2;
+
+    private final Logger log;
+    private final String context;
+    private final String namespace;
+    private final String target;
+    private final String port;
+    private final InetSocketAddress address;
+    private volatile KubeClient client;
+    private volatile KubeClient.Endpoint endpoint;
+    private volatile ServerSocket server;
+
+    /**
+     * @param namespace the namespace, or null for the namespace of the context
+     * @param address   where to listen, with port 0 for any free port
+     */
+    PortForward(Logger log, String context, String namespace, String target, String port, InetSocketAddress address) {
+        this.log = log;
+        this.context = context;
+        this.namespace = namespace;
+        this.target = target;
+        this.port = port;
+        this.address = address;
+    }
+
+    /**
+     * A forward to one pod that is already known, so it isn't looked up again.
+     */
+    static PortForward toPod(Logger log, String context, String namespace, KubeClient.Endpoint endpoint, InetSocketAddress address) {
+        var forward = new PortForward(log, context, namespace, "pod/" + endpoint.pod(), String.valueOf(endpoint.port()), address);
+        forward.endpoint = endpoint;
+        return forward;
+    }
+
+    /**
+     * Starts listening and returns the local port.
+     */
+    int open() throws IOException {
+        var server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address);
+        this.server = server;
+        Thread.ofVirtual().name("portforward-" + server.getLocalPort()).start(this::accept);
+        return server.getLocalPort();
+    }
+
+    void close() {
+        var server = this.server;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                log.debug("Error closing port-forward listener: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Looks up the pod to forward to, unless it is already known.
+     */
+    KubeClient.Endpoint resolve() throws IOException {
+        var endpoint = this.endpoint;
+        if (endpoint == null) {
+            endpoint = client().resolve(namespace(), target, port);
+            log.info("Forwarding to pod {} port {}", endpoint.pod(), endpoint.port());
+            this.endpoint = endpoint;
+        }
+        return endpoint;
+    }
+
+    private KubeClient client() throws IOException {
+        var client = this.client;
+        if (client == null) {
+            client = KubeClient.forContext(context);
+            this.client = client;
+        }
+        return client;
+    }
+
+    private String namespace() throws IOException {
+        return namespace != null ? namespace : client().defaultNamespace();
+    }
+
+    private void accept() {
+        var server = this.server;
+        while (!server.isClosed()) {
+            try {
+                var socket = server.accept();
+                Thread.ofVirtual().name("portforward").start(() -> forward(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.warn("Error accepting connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void forward(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            var stream = new Stream(socket.getOutputStream());
+            WebSocket ws;
+            try {
+                ws = client().portForward(namespace(), resolve(), stream).get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException | IOException e) {
+                // The pod may be gone, look it up again for the next connection
+                endpoint = null;
+                log.warn("Could not open port-forward stream: {}", e instanceof ExecutionException ? e.getCause().getMessage() : e.getMessage());
+                return;
+            }
+
+            var in = socket.getInputStream();
+            var buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                var frame = ByteBuffer.allocate(n + 1).put(DATA).put(buffer, 0, n).flip();
+                ws.sendBinary(frame, true).get();
+            }
+            // The protocol can't half-close, so the stream ends with the client's side of it, but
+            // the socket stays open for what the pod still has to send until the apiserver closes too
+            ws.sendClose(WebSocket.NORMAL_CLOSURE, "").get();
+            try {
+                stream.closed.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                log.debug("Port-forward stream not closed within {} s, aborting", CLOSE_TIMEOUT_SECONDS);
+                ws.abort();
+            }
+        } catch (SocketException e) {
+            log.debug("Connection closed: {}", e.getMessage());
+        } catch (IOException | ExecutionException e) {
+            log.debug("Port-forward stream failed: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Receives one stream from the apiserver and writes the data channel to the local socket.
+     */
+    private class Stream implements WebSocket.Listener {
+        private final OutputStream out;
+        private final int[] prefix = {PORT_PREFIX, PORT_PREFIX};
+        private final StringBuilder error = new StringBuilder();
+        // Completed when the apiserver is done with the stream
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+        private int channel = -1;
+
+        Stream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket ws, ByteBuffer data, boolean last) {
+            if (channel < 0 && data.hasRemaining()) {
+                channel = data.get();
+            }
+            if (channel == DATA || channel == ERROR) {
+                var skip = Math.min(prefix[channel], data.remaining());
+                prefix[channel] -= skip;
+                data.position(data.position() + skip);
+            }
+            var bytes = new byte[data.remaining()];
+            data.get(bytes);
+            try {
+                if (channel == DATA) {
+                    out.write(bytes);
+                } else if (channel == ERROR) {
+                    error.append(new String(bytes, StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                ws.abort();
+                closeOutput();
+                return null;
+            }
+            if (last) {
+                channel = -1;
+                if (!error.isEmpty()) {
+                    log.warn("Port-forward error: {}", error);
+                    error.setLength(0);
+                    ws.abort();
+                    closeOutput();
+                    return null;
+                }
+            }
+            ws.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+            closeOutput();
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket ws, Throwable error) {
+            log.debug("Port-forward stream error: {}", error.getMessage());
+            closeOutput();
+        }
+
+        private void closeOutput() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            closed.complete(null);
+        }
+    }
+}
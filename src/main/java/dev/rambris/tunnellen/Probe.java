@@ -0,0 +1,68 @@
+package dev.rambris.tunnellen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Checks that a tunnel reaches a live upstream. kubectl accepts connections even when the pod
+ * behind it is gone and only closes them afterwards, so a probe must get an answer from the
+ * upstream, not just a connection.
+ */
+enum Probe {
+    /** Connection only, for tunnels of unknown type */
+    TCP {
+        @Override
+        void check(Socket socket) {
+        }
+    },
+    /** Any response to a HEAD request. Even an error status proves the upstream answers */
+    HTTP {
+        @Override
+        void check(Socket socket) throws IOException {
+            var out = socket.getOutputStream();
+            out.write("HEAD / HTTP/1.1\r\nHost: localhost\r\nUser-Agent: tunnellen\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            readAtLeastOne(socket);
+        }
+    },
+    /** An SSLRequest, which a PostgreSQL server answers with a single 'S' or 'N' */
+    POSTGRESQL {
+        @Override
+        void check(Socket socket) throws IOException {
+            var out = socket.getOutputStream();
+            out.write(new byte[]{0, 0, 0, 8, 0x04, (byte) 0xd2, 0x16, 0x2f});
+            out.flush();
+            readAtLeastOne(socket);
+        }
+    },
+    /** The greeting a MySQL server sends as soon as a client connects */
+    MYSQL {
+        @Override
+        void check(Socket socket) throws IOException {
+            readAtLeastOne(socket);
+        }
+    };
+
+    abstract void check(Socket socket) throws IOException;
+
+    static Probe of(Optional<Tunnel.Type> type, Database database) {
+        return type.map(t -> switch (t) {
+            case HTTP -> HTTP;
+            case DATABASE -> Optional.ofNullable(database)
+                    .map(db -> switch (db.kind()) {
+                        case POSTGRESQL -> POSTGRESQL;
+                        case MYSQL -> MYSQL;
+                    })
+                    .orElse(TCP);
+        }).orElse(TCP);
+    }
+
+    private static void readAtLeastOne(Socket socket) throws IOException {
+        if (socket.getInputStream().read() == -1) {
+            throw new EOFException("Connection closed without a response");
+        }
+    }
+}
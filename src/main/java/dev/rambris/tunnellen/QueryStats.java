@@ -0,0 +1,111 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Query counters of a database tunnel, fed by a {@link WireObserver} per relayed connection. They
+ * belong to the tunnel, like its traffic counters, and survive restarts.
+ * <p>
+ * Queries slower than the threshold are sampled: the most recent ones are kept with their
+ * statement, literals replaced by {@code ?} so values don't end up in the UI or in metrics.
+ */
+class QueryStats {
+    /**
+     * A slow query.
+     */
+    record Sample(LocalDateTime at, Duration latency, String statement) {
+    }
+
+    private static final int MAX_SAMPLES = 10;
+    private static final int MAX_STATEMENT_LENGTH = 200;
+    private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Database.Kind kind;
+    private final Duration slowQuery;
+    private final Histogram latency = new Histogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong slow = new AtomicLong();
+    // Most recent first
+    private final Deque<Sample> samples = new ArrayDeque<>();
+
+    QueryStats(Database.Kind kind, Duration slowQuery) {
+        this.kind = kind;
+        this.slowQuery = slowQuery;
+    }
+
+    /**
+     * A new observer for one connection.
+     */
+    WireObserver observe() {
+        return WireObserver.of(kind, this);
+    }
+
+    /**
+     * @param statement the statement, or null if it isn't known
+     */
+    void record(long nanos, String statement, boolean failed) {
+        latency.record(nanos);
+        if (failed) {
+            errors.incrementAndGet();
+        }
+        if (nanos >= slowQuery.toNanos()) {
+            slow.incrementAndGet();
+            sample(new Sample(LocalDateTime.now(), Duration.ofNanos(nanos), normalize(statement)));
+        }
+    }
+
+    private synchronized void sample(Sample sample) {
+        // The same statement again replaces its older sample
+        samples.removeIf(s -> s.statement().equals(sample.statement()));
+        samples.addFirst(sample);
+        while (samples.size() > MAX_SAMPLES) {
+            samples.removeLast();
+        }
+    }
+
+    static String normalize(String statement) {
+        if (statement == null) {
+            return "(unknown)";
+        }
+        var normalized = WHITESPACE.matcher(LITERALS.matcher(statement).replaceAll("?")).replaceAll(" ").strip();
+        return normalized.length() > MAX_STATEMENT_LENGTH ? normalized.substring(0, MAX_STATEMENT_LENGTH) + "…" : normalized;
+    }
+
+    Database.Kind getKind() {
+        return kind;
+    }
+
+    Duration getSlowQuery() {
+        return slowQuery;
+    }
+
+    Histogram getLatency() {
+        return latency;
+    }
+
+    long getQueries() {
+        return latency.getCount();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    long getSlow() {
+        return slow.get();
+    }
+
+    /**
+     * The sampled slow queries, most recent first.
+     */
+    synchronized List<Sample> getSamples() {
+        return List.copyOf(samples);
+    }
+}
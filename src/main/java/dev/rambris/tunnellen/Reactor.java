@@ -0,0 +1,137 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread shared by all relays. Handlers and timers run on the reactor
+ * thread; other threads hand work over with {@link #execute(Runnable)}.
+ */
+final class Reactor {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(Reactor.class);
+    private static Reactor instance;
+
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+    }
+
+    private record Timer(long deadline, long sequence, Runnable task) implements Comparable<Timer> {
+        @Override
+        public int compareTo(Timer o) {
+            int c = Long.compare(deadline, o.deadline);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Thread thread;
+    private long timerSequence = 0;
+
+    private Reactor() throws IOException {
+        selector = Selector.open();
+        thread = Thread.ofPlatform().name("reactor").daemon().start(this::run);
+    }
+
+    static synchronized Reactor get() {
+        if (instance == null) {
+            try {
+                instance = new Reactor();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Runs the task on the reactor thread. Safe to call from any thread.
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the reactor thread after the given delay. Safe to call from any thread.
+     */
+    void schedule(Duration delay, Runnable task) {
+        var deadline = System.nanoTime() + delay.toNanos();
+        execute(() -> timers.add(new Timer(deadline, timerSequence++, task)));
+    }
+
+    /**
+     * Registers the channel with the shared selector. Must be called on the reactor thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    private void run() {
+        while (selector.isOpen()) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+
+                var timer = timers.peek();
+                if (timer == null) {
+                    selector.select();
+                } else {
+                    var millis = (timer.deadline() - System.nanoTime()) / 1_000_000;
+                    if (millis > 0) {
+                        selector.select(millis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                for (var key : selector.selectedKeys()) {
+                    try {
+                        ((Handler) key.attachment()).handle(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        // Handlers that own more than the channel clean up after themselves, this
+                        // only keeps a failing one from spinning
+                        log.debug("Closing channel: {}", e.getMessage());
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                var now = System.nanoTime();
+                while ((timer = timers.peek()) != null && timer.deadline() - now <= 0) {
+                    timers.poll();
+                    runSafely(timer.task());
+                }
+            } catch (Exception e) {
+                log.error("Error in reactor loop", e);
+            }
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("Error in reactor task", e);
+        }
+    }
+}
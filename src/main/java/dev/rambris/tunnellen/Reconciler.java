@@ -0,0 +1,151 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Brings the registry in line with a newly loaded list of tunnels. The lists are matched by id, so
+ * a reload only stops, starts or updates the tunnels that actually changed.
+ */
+class Reconciler {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(Reconciler.class);
+
+    /**
+     * What a reload has to do. A changed tunnel is the new definition of a tunnel with the same id.
+     */
+    record Plan(List<Tunnel> added, List<Tunnel> removed, List<Tunnel> changed, List<Tunnel> unchanged) {
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "%d added, %d removed, %d changed, %d unchanged".formatted(added.size(), removed.size(), changed.size(), unchanged.size());
+        }
+    }
+
+    private final TunnelRegistry registry;
+    private final KeepAlive keepAlive;
+    private final int parallelism;
+
+    Reconciler(TunnelRegistry registry, KeepAlive keepAlive, int parallelism) {
+        this.registry = registry;
+        this.keepAlive = keepAlive;
+        this.parallelism = parallelism;
+    }
+
+    static Plan diff(List<Tunnel> current, List<Tunnel> desired) {
+        var wanted = new LinkedHashMap<String, Tunnel>();
+        desired.forEach(t -> wanted.putIfAbsent(t.getId(), t));
+
+        var removed = new ArrayList<Tunnel>();
+        var changed = new ArrayList<Tunnel>();
+        var unchanged = new ArrayList<Tunnel>();
+        for (var tunnel : current) {
+            var next = wanted.remove(tunnel.getId());
+            if (next == null) {
+                removed.add(tunnel);
+            } else if (tunnel.sameSpec(next)) {
+                unchanged.add(tunnel);
+            } else {
+                changed.add(next);
+            }
+        }
+        return new Plan(List.copyOf(wanted.values()), removed, changed, unchanged);
+    }
+
+    /**
+     * Applies the new list of tunnels and returns what was done. Removed tunnels are stopped
+     * before anything is started so their local ports are free for the tunnels that replace them.
+     */
+    synchronized Plan reconcile(List<Tunnel> desired) throws InterruptedException {
+        var snapshot = registry.snapshot();
+        var plan = diff(snapshot.tunnels(), desired);
+        if (plan.isEmpty()) {
+            return plan;
+        }
+
+        // Tunnels whose new settings cannot be taken on while running are swapped for the new definition
+        var replaced = new ArrayList<Tunnel>();
+        var replacements = new ArrayList<Tunnel>();
+        var updated = new ArrayList<Tunnel>();
+        var starting = new ArrayList<Tunnel>();
+        for (var next : plan.changed()) {
+            var tunnel = snapshot.get(next.getId()).orElseThrow();
+            if (tunnel.needsRestart(next)) {
+                replaced.add(tunnel);
+                replacements.add(next);
+                if (tunnel.isStarted() || next.opensOnStartup()) {
+                    starting.add(next);
+                }
+            } else {
+                updated.add(next);
+            }
+        }
+
+        var stopping = new ArrayList<>(plan.removed());
+        stopping.addAll(replaced);
+        run(stopping, tunnel -> {
+            log.info("Stopping tunnel {}", tunnel);
+            keepAlive.removeTunnel(tunnel);
+            tunnel.stop();
+        });
+
+        // Updated before the new snapshot is published, so views built from it see the new settings
+        for (var next : updated) {
+            var tunnel = snapshot.get(next.getId()).orElseThrow();
+            if (next.opensOnStartup() && !tunnel.opensOnStartup() && !tunnel.isStarted()) {
+                starting.add(tunnel);
+            }
+            tunnel.update(next);
+        }
+
+        registry.update(tunnels -> {
+            var byId = new LinkedHashMap<String, Tunnel>();
+            tunnels.forEach(t -> byId.put(t.getId(), t));
+            plan.removed().forEach(t -> byId.remove(t.getId()));
+            replacements.forEach(t -> byId.put(t.getId(), t));
+            plan.added().forEach(t -> byId.putIfAbsent(t.getId(), t));
+            return List.copyOf(byId.values());
+        });
+        plan.added().stream().filter(Tunnel::opensOnStartup).forEach(starting::add);
+        run(starting, tunnel -> {
+            log.info("Starting tunnel {}", tunnel);
+            tunnel.start();
+            keepAlive.addTunnel(tunnel);
+        });
+        return plan;
+    }
+
+    /**
+     * Runs the action for every tunnel on virtual threads, at most {@link #parallelism} at a
+     * time, and waits for all of them.
+     */
+    private void run(List<Tunnel> tunnels, Consumer<Tunnel> action) throws InterruptedException {
+        if (tunnels.isEmpty()) {
+            return;
+        }
+        var permits = new Semaphore(parallelism);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var tunnel : tunnels) {
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        action.accept(tunnel);
+                    } catch (RuntimeException e) {
+                        log.error("Error reconciling tunnel {}", tunnel, e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package dev.rambris.tunnellen;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Owns a tunnel's local port and relays every accepted connection to the port kubectl listens on.
+ * While the upstream is unavailable, e.g. during a restart, new connections are held for up to
+ * the queue timeout instead of being refused. With several upstreams, one per pod, connections are
+ * spread over them. For database tunnels the traffic can be watched for query timings on the way.
+ */
+class Relay {
+    enum Balance {
+        ROUND_ROBIN,
+        LEAST_CONNECTIONS
+    }
+
+    private static final Duration RETRY_INTERVAL = Duration.ofMillis(250);
+    private static final Duration ACCEPT_PAUSE = Duration.ofSeconds(1);
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final Logger log;
+    private final InetSocketAddress address;
+    private final Duration queueTimeout;
+    private final Traffic traffic;
+    private final Runnable onConnect;
+    private final Runnable onIdle;
+    private final Balance balance;
+    private final QueryStats queries;
+    private final Reactor reactor = Reactor.get();
+    private volatile List<InetSocketAddress> upstreams = List.of();
+    private ServerSocketChannel server;
+
+    // Only touched on the reactor thread
+    private final Set<Connection> connections = new HashSet<>();
+    private final Map<InetSocketAddress, Integer> active = new HashMap<>();
+    private int next = 0;
+
+    /**
+     * @param address   where to listen, with port 0 for any free port
+     * @param onConnect called on the reactor thread for every accepted connection
+     * @param onIdle    called on the reactor thread when the last active connection closes
+     * @param queries   where to record the queries of every connection, or null
+     */
+    Relay(Logger log, InetSocketAddress address, Duration queueTimeout, Traffic traffic, Runnable onConnect, Runnable onIdle, Balance balance, QueryStats queries) {
+        this.log = log;
+        this.address = address;
+        this.queueTimeout = queueTimeout;
+        this.traffic = traffic;
+        this.onConnect = onConnect;
+        this.onIdle = onIdle;
+        this.balance = balance;
+        this.queries = queries;
+    }
+
+    void open() throws IOException {
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address);
+        server.configureBlocking(false);
+        var channel = server;
+        var port = getAddress().getPort();
+        reactor.execute(() -> {
+            try {
+                reactor.register(channel, SelectionKey.OP_ACCEPT, this::accept);
+            } catch (IOException e) {
+                log.error("Could not register relay on port {}: {}", port, e.getMessage());
+            }
+        });
+        log.info("Relaying port {}", port);
+    }
+
+    /**
+     * The address the relay listens on once open.
+     */
+    InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) server.getLocalAddress();
+        } catch (IOException e) {
+            return address;
+        }
+    }
+
+    void close() {
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            log.warn("Error closing relay: {}", e.getMessage());
+        }
+        reactor.execute(() -> Set.copyOf(connections).forEach(Connection::close));
+    }
+
+    /**
+     * Sets the address kubectl listens on, or null while it is unavailable. Connections waiting
+     * for an upstream are retried immediately.
+     */
+    void setUpstream(InetSocketAddress upstream) {
+        setUpstreams(upstream != null ? List.of(upstream) : List.of());
+    }
+
+    /**
+     * Sets the addresses to spread connections over. Connections already relayed stay where they
+     * are.
+     */
+    void setUpstreams(List<InetSocketAddress> upstreams) {
+        this.upstreams = List.copyOf(upstreams);
+        if (!upstreams.isEmpty()) {
+            reactor.execute(() -> Set.copyOf(connections).stream().filter(Connection::isWaiting).forEach(Connection::connect));
+        }
+    }
+
+    InetSocketAddress getUpstream() {
+        var upstreams = this.upstreams;
+        return upstreams.isEmpty() ? null : upstreams.get(0);
+    }
+
+    List<InetSocketAddress> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * Picks the upstream for a new connection. Called on the reactor thread.
+     */
+    private InetSocketAddress pick() {
+        var upstreams = this.upstreams;
+        if (upstreams.size() <= 1) {
+            return upstreams.isEmpty() ? null : upstreams.get(0);
+        }
+        var start = Math.floorMod(next++, upstreams.size());
+        if (balance == Balance.ROUND_ROBIN) {
+            return upstreams.get(start);
+        }
+        // Least connections, starting the search where round robin would so ties are spread
+        InetSocketAddress best = null;
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 0; i < upstreams.size(); i++) {
+            var candidate = upstreams.get((start + i) % upstreams.size());
+            var count = active.getOrDefault(candidate, 0);
+            if (count < fewest) {
+                best = candidate;
+                fewest = count;
+            }
+        }
+        return best;
+    }
+
+    private void accept(SelectionKey key) {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                if (!server.isOpen()) {
+                    return;
+                }
+                // Like running out of file descriptors, which passes, so the port stays open and
+                // accepting pauses instead of spinning on a connection it can't take yet
+                log.warn("Error accepting connection: {}", e.getMessage());
+                key.interestOps(0);
+                reactor.schedule(ACCEPT_PAUSE, () -> {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                });
+                return;
+            }
+            if (client == null) {
+                return;
+            }
+            try {
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                log.debug("Could not set up connection: {}", e.getMessage());
+                Connection.closeQuietly(client);
+                continue;
+            }
+            traffic.opened();
+            var connection = new Connection(client);
+            connections.add(connection);
+            onConnect.run();
+            connection.queue();
+            connection.connect();
+        }
+    }
+
+    /**
+     * A client connection and its upstream counterpart. Each direction has its own buffer, and a
+     * side only reads while there is room to buffer what it reads, so a slow reader pushes back
+     * on a fast writer.
+     */
+    private class Connection {
+        private final SocketChannel client;
+        private final long deadline = System.nanoTime() + queueTimeout.toNanos();
+        private SocketChannel upstreamChannel;
+        private InetSocketAddress address;
+        private SelectionKey clientKey;
+        private SelectionKey upstreamKey;
+        private final ByteBuffer toUpstream = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer toClient = ByteBuffer.allocate(BUFFER_SIZE);
+        private final WireObserver observer = queries != null ? queries.observe() : null;
+        private boolean clientEof = false;
+        private boolean upstreamEof = false;
+        private boolean waiting = true;
+        private boolean retryScheduled = false;
+        private boolean closed = false;
+
+        Connection(SocketChannel client) {
+            this.client = client;
+        }
+
+        boolean isWaiting() {
+            return waiting && upstreamChannel == null;
+        }
+
+        /**
+         * Reads from the client while it waits for an upstream, so one that goes away is dropped
+         * right away rather than when it would have been relayed. What it sends is kept for the
+         * upstream.
+         */
+        void queue() {
+            try {
+                clientKey = reactor.register(client, SelectionKey.OP_READ, this::onQueued);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void onQueued(SelectionKey key) {
+            try {
+                var n = client.read(toUpstream);
+                if (n < 0) {
+                    clientEof = true;
+                    if (toUpstream.position() == 0) {
+                        // Gone without asking for anything
+                        close();
+                        return;
+                    }
+                } else {
+                    traffic.received(n);
+                    if (observer != null) {
+                        observer.fromClient(toUpstream, toUpstream.position() - n, n);
+                    }
+                }
+                key.interestOps(!clientEof && toUpstream.hasRemaining() ? SelectionKey.OP_READ : 0);
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void connect() {
+            if (closed || !waiting || upstreamChannel != null) {
+                return;
+            }
+            var address = pick();
+            if (address == null) {
+                retryLater();
+                return;
+            }
+            use(address);
+            try {
+                upstreamChannel = SocketChannel.open();
+                upstreamChannel.configureBlocking(false);
+                upstreamChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (upstreamChannel.connect(address)) {
+                    established();
+                } else {
+                    upstreamKey = reactor.register(upstreamChannel, SelectionKey.OP_CONNECT, this::finishConnect);
+                }
+            } catch (IOException e) {
+                connectFailed(e);
+            }
+        }
+
+        private void finishConnect(SelectionKey key) {
+            try {
+                if (upstreamChannel.finishConnect()) {
+                    established();
+                }
+            } catch (IOException e) {
+                connectFailed(e);
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void connectFailed(IOException e) {
+            log.debug("Upstream not available: {}", e.getMessage());
+            closeQuietly(upstreamChannel);
+            upstreamChannel = null;
+            upstreamKey = null;
+            use(null);
+            retryLater();
+        }
+
+        /**
+         * Keeps count of the connections to each upstream for least connections.
+         */
+        private void use(InetSocketAddress address) {
+            if (this.address != null) {
+                active.computeIfPresent(this.address, (a, n) -> n > 1 ? n - 1 : null);
+            }
+            this.address = address;
+            if (address != null) {
+                active.merge(address, 1, Integer::sum);
+            }
+        }
+
+        private void retryLater() {
+            if (System.nanoTime() - deadline >= 0) {
+                log.warn("Gave up waiting for upstream after {} s", queueTimeout.toSeconds());
+                close();
+            } else if (!retryScheduled) {
+                retryScheduled = true;
+                reactor.schedule(RETRY_INTERVAL, () -> {
+                    retryScheduled = false;
+                    connect();
+                });
+            }
+        }
+
+        private void established() throws IOException {
+            waiting = false;
+            upstreamKey = reactor.register(upstreamChannel, SelectionKey.OP_READ, this::onUpstream);
+            clientKey = reactor.register(client, SelectionKey.OP_READ, this::onClient);
+            // Passes on what the client sent while it waited
+            try {
+                update();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void onClient(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    var n = client.read(toUpstream);
+                    if (n < 0) {
+                        clientEof = true;
+                    } else {
+                        traffic.received(n);
+                        if (observer != null) {
+                            observer.fromClient(toUpstream, toUpstream.position() - n, n);
+                        }
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    toClient.flip();
+                    client.write(toClient);
+                    toClient.compact();
+                }
+                update();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void onUpstream(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    var n = upstreamChannel.read(toClient);
+                    if (n < 0) {
+                        upstreamEof = true;
+                    } else {
+                        traffic.sent(n);
+                        if (observer != null) {
+                            observer.fromServer(toClient, toClient.position() - n, n);
+                        }
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    toUpstream.flip();
+                    upstreamChannel.write(toUpstream);
+                    toUpstream.compact();
+                }
+                update();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void update() throws IOException {
+            if (clientEof && toUpstream.position() == 0 && !upstreamChannel.socket().isOutputShutdown()) {
+                upstreamChannel.shutdownOutput();
+            }
+            if (upstreamEof && toClient.position() == 0 && !client.socket().isOutputShutdown()) {
+                client.shutdownOutput();
+            }
+            if (clientEof && upstreamEof && toUpstream.position() == 0 && toClient.position() == 0) {
+                close();
+                return;
+            }
+            clientKey.interestOps(interest(clientEof, toUpstream, toClient));
+            upstreamKey.interestOps(interest(upstreamEof, toClient, toUpstream));
+        }
+
+        private static int interest(boolean eof, ByteBuffer readInto, ByteBuffer writeFrom) {
+            int ops = 0;
+            if (!eof && readInto.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writeFrom.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.remove(this);
+            use(null);
+            if (traffic.closed()) {
+                onIdle.run();
+            }
+            closeQuietly(client);
+            closeQuietly(upstreamChannel);
+        }
+
+        private static void closeQuietly(SocketChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException __) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches responses to GET requests proxied through an http tunnel, following the rules of a shared
+ * cache: Cache-Control and Expires decide how long a response is fresh, and stale responses with
+ * an ETag or Last-Modified are revalidated with a conditional request instead of being fetched
+ * again. Memory is bounded by the size of the cached bodies, evicting the least recently used.
+ * <p>
+ * The counters belong to the tunnel, like its traffic counters, and survive restarts.
+ */
+class ResponseCache {
+    /**
+     * A cached response. The body is kept as it was sent, chunked or not.
+     */
+    record Entry(HttpProxy.Head response, byte[] body, Map<String, String> vary, long storedAt, Duration lifetime, Duration initialAge) {
+        Duration age() {
+            return initialAge.plusNanos(System.nanoTime() - storedAt);
+        }
+
+        boolean isFresh() {
+            return age().compareTo(lifetime) < 0;
+        }
+
+        /**
+         * The request with the validators of this entry added.
+         */
+        HttpProxy.Head conditional(HttpProxy.Head request) {
+            var conditional = request;
+            var etag = response.value("etag");
+            if (etag.isPresent()) {
+                conditional = conditional.with("If-None-Match", etag.get());
+            }
+            var lastModified = response.value("last-modified");
+            if (lastModified.isPresent()) {
+                conditional = conditional.with("If-Modified-Since", lastModified.get());
+            }
+            return conditional;
+        }
+
+        /**
+         * The response as served from the cache.
+         */
+        HttpProxy.Head served() {
+            return response.with("Age", String.valueOf(age().toSeconds()));
+        }
+
+        int size() {
+            return body.length + response.headers().stream().mapToInt(String::length).sum();
+        }
+    }
+
+    private static final List<String> CONDITIONALS = List.of("if-none-match", "if-modified-since", "if-match", "if-unmodified-since", "if-range", "range");
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        // A single response may not push out more than an eighth of the cache
+        this.maxEntryBytes = maxBytes / 8;
+    }
+
+    /**
+     * Whether the request may be answered from, or stored in, the cache. Requests with conditions
+     * of their own are passed on as they are.
+     */
+    boolean accepts(HttpProxy.Head request) {
+        return "GET".equals(request.method())
+               && request.contentLength() <= 0
+               && !request.has("transfer-encoding", "chunked")
+               && !request.has("cache-control", "no-store")
+               && CONDITIONALS.stream().noneMatch(h -> request.value(h).isPresent());
+    }
+
+    /**
+     * The entry for the request, unless the request asks for it to be revalidated.
+     */
+    synchronized Optional<Entry> get(HttpProxy.Head request) {
+        var entry = entries.get(key(request));
+        if (entry == null || !entry.vary().equals(vary(entry.response(), request))) {
+            return Optional.empty();
+        }
+        if (request.has("cache-control", "no-cache") || request.has("cache-control", "max-age=0")) {
+            return Optional.of(new Entry(entry.response(), entry.body(), entry.vary(), entry.storedAt(), Duration.ZERO, entry.initialAge()));
+        }
+        return Optional.of(entry);
+    }
+
+    /**
+     * Whether a response of the given size may be stored, for the body to be kept while sending it.
+     */
+    boolean accepts(HttpProxy.Head request, HttpProxy.Head response) {
+        var control = directives(response);
+        if (response.status() != 200 || control.containsKey("no-store") || control.containsKey("private")
+            || response.values("vary").stream().anyMatch(v -> v.contains("*"))) {
+            return false;
+        }
+        if (request.value("authorization").isPresent()
+            && !(control.containsKey("public") || control.containsKey("s-maxage") || control.containsKey("must-revalidate"))) {
+            return false;
+        }
+        return response.value("etag").isPresent() || response.value("last-modified").isPresent() || !lifetime(response).isZero();
+    }
+
+    long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    void put(HttpProxy.Head request, HttpProxy.Head response, byte[] body) {
+        var entry = new Entry(response, body, vary(response, request), System.nanoTime(), lifetime(response), initialAge(response));
+        store(key(request), entry);
+    }
+
+    /**
+     * Takes on the headers of a 304 to a conditional request and returns the refreshed entry.
+     */
+    Entry revalidated(HttpProxy.Head request, Entry entry, HttpProxy.Head notModified) {
+        var response = entry.response();
+        for (var name : List.of("Cache-Control", "Date", "Expires", "ETag", "Last-Modified", "Vary")) {
+            var value = notModified.value(name.toLowerCase());
+            if (value.isPresent()) {
+                response = response.with(name, value.get());
+            }
+        }
+        var refreshed = new Entry(response, entry.body(), entry.vary(), System.nanoTime(), lifetime(response), initialAge(notModified));
+        if (directives(response).containsKey("no-store")) {
+            remove(key(request));
+        } else {
+            store(key(request), refreshed);
+        }
+        return refreshed;
+    }
+
+    private synchronized void store(String key, Entry entry) {
+        var size = entry.size();
+        if (size > maxEntryBytes) {
+            return;
+        }
+        var old = entries.put(key, entry);
+        bytes += size - (old != null ? old.size() : 0);
+        var eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        var old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void revalidation() {
+        revalidations.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getRevalidations() {
+        return revalidations.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    synchronized int getEntries() {
+        return entries.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static String key(HttpProxy.Head request) {
+        return request.value("host").orElse("") + " " + request.target();
+    }
+
+    /**
+     * The values of the request headers the response varies on.
+     */
+    private static Map<String, String> vary(HttpProxy.Head response, HttpProxy.Head request) {
+        var vary = new HashMap<String, String>();
+        response.values("vary").stream()
+                .flatMap(v -> Arrays.stream(v.split(",")))
+                .map(h -> h.trim().toLowerCase())
+                .filter(h -> !h.isEmpty())
+                .forEach(h -> vary.put(h, String.join(",", request.values(h))));
+        return vary;
+    }
+
+    /**
+     * How long a response is fresh: s-maxage, max-age or Expires, and not at all with no-cache.
+     */
+    private static Duration lifetime(HttpProxy.Head response) {
+        var control = directives(response);
+        if (control.containsKey("no-cache")) {
+            return Duration.ZERO;
+        }
+        var maxAge = Optional.ofNullable(control.get("s-maxage")).or(() -> Optional.ofNullable(control.get("max-age")));
+        if (maxAge.isPresent()) {
+            return seconds(maxAge.get());
+        }
+        var expires = response.value("expires").flatMap(ResponseCache::date);
+        if (expires.isPresent()) {
+            var date = response.value("date").flatMap(ResponseCache::date).orElseGet(ZonedDateTime::now);
+            var lifetime = Duration.between(date, expires.get());
+            return lifetime.isNegative() ? Duration.ZERO : lifetime;
+        }
+        return Duration.ZERO;
+    }
+
+    private static Duration initialAge(HttpProxy.Head response) {
+        return response.value("age").map(ResponseCache::seconds).orElse(Duration.ZERO);
+    }
+
+    private static Map<String, String> directives(HttpProxy.Head response) {
+        var directives = new HashMap<String, String>();
+        response.values("cache-control").stream()
+                .flatMap(v -> Arrays.stream(v.split(",")))
+                .map(String::trim)
+                .filter(d -> !d.isEmpty())
+                .forEach(d -> {
+                    var eq = d.indexOf('=');
+                    var name = (eq < 0 ? d : d.substring(0, eq)).trim().toLowerCase();
+                    directives.put(name, eq < 0 ? "" : d.substring(eq + 1).trim().replace("\"", ""));
+                });
+        return directives;
+    }
+
+    private static Duration seconds(String value) {
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            return Duration.ZERO;
+        }
+    }
+
+    private static Optional<ZonedDateTime> date(String value) {
+        try {
+            return Optional.of(ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Stops all tunnels at once under one deadline, so a service manager waiting for tunnellen to exit
+ * doesn't lose patience and kill it, leaving kubectl behind holding the ports. Every kubectl is
+ * asked to exit first, then the tunnels are stopped in parallel, and whatever is still running at
+ * the deadline is killed along with its descendants, like exec plugins still authenticating.
+ */
+class Shutdown {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(Shutdown.class);
+
+    record Report(int tunnels, long killed, Duration total) {
+        void log() {
+            if (killed > 0) {
+                Shutdown.log.warn("Stopped {} tunnels in {} ms, killed {} processes that did not exit in time", tunnels, total.toMillis(), killed);
+            } else {
+                Shutdown.log.info("Stopped {} tunnels in {} ms", tunnels, total.toMillis());
+            }
+        }
+    }
+
+    private final Duration deadline;
+
+    Shutdown(Duration deadline) {
+        this.deadline = deadline;
+    }
+
+    Report run(Collection<Tunnel> tunnels) {
+        var started = System.nanoTime();
+        // Taken before anything exits, since a process that lost its parent can't be found from it any more
+        var processes = Stream.concat(KubectlProcess.handles().stream(), ProcessHandle.current().descendants())
+                .flatMap(p -> Stream.concat(Stream.of(p), p.descendants()))
+                .distinct()
+                .toList();
+        KubectlProcess.shutdown();
+
+        // Platform threads, since stopping a tunnel waits for kubectl while holding the tunnel's
+        // monitor, which would pin a virtual thread to its carrier and stop the others from running
+        var executor = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("shutdown-", 0).factory());
+        tunnels.forEach(t -> executor.execute(t::stop));
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(deadline.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Tunnels did not stop within {} s, killing what is left", deadline.toSeconds());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        var killed = processes.stream().filter(ProcessHandle::isAlive).filter(ProcessHandle::destroyForcibly).count();
+        executor.shutdownNow();
+        return new Report(tunnels.size(), killed, Duration.ofNanos(System.nanoTime() - started));
+    }
+}
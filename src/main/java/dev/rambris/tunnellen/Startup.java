@@ -0,0 +1,124 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Starts tunnels in parallel and waits for them to be ready. Starting kubectl can be expensive
+ * when the context authenticates through an exec plugin, so only a limited number of tunnels per
+ * context start at the same time. A tunnel holds its slot until it is ready or gives up.
+ */
+class Startup {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(Startup.class);
+    private static final Duration READY_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration PROBE_INTERVAL = Duration.ofSeconds(1);
+    private static final int SLOWEST = 5;
+
+    /**
+     * How long a tunnel took from being started until it was ready, or until it was given up on.
+     */
+    record Timing(Tunnel tunnel, Duration time, boolean ready) {
+    }
+
+    record Report(List<Timing> timings, Duration total) {
+        long readyCount() {
+            return timings.stream().filter(Timing::ready).count();
+        }
+
+        List<Timing> slowest(int n) {
+            return timings.stream().sorted(Comparator.comparing(Timing::time).reversed()).limit(n).toList();
+        }
+
+        void log() {
+            if (timings.isEmpty()) {
+                return;
+            }
+            if (readyCount() == timings.size()) {
+                Startup.log.info("All {} tunnels ready in {} ms", timings.size(), total.toMillis());
+            } else {
+                Startup.log.warn("{} of {} tunnels ready after {} ms", readyCount(), timings.size(), total.toMillis());
+            }
+            slowest(SLOWEST).forEach(t -> Startup.log.info("  {} ms {} {}:{}{}", t.time().toMillis(), t.tunnel().getContext(), t.tunnel().getTarget(), t.tunnel().getLocalPort(), t.ready() ? "" : " (not ready)"));
+        }
+    }
+
+    private final KeepAlive keepAlive;
+    private final int concurrency;
+
+    Startup(KeepAlive keepAlive, int concurrency) {
+        this.keepAlive = keepAlive;
+        this.concurrency = concurrency;
+    }
+
+    Report run(Collection<Tunnel> tunnels) throws InterruptedException {
+        var started = System.nanoTime();
+        var permits = new ConcurrentHashMap<String, Semaphore>();
+        var results = new ArrayList<Future<Timing>>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var tunnel : tunnels) {
+                var context = permits.computeIfAbsent(tunnel.getContext(), c -> new Semaphore(concurrency));
+                results.add(executor.submit(() -> start(tunnel, context)));
+            }
+        }
+        var timings = results.stream().map(Startup::result).toList();
+        return new Report(timings, Duration.ofNanos(System.nanoTime() - started));
+    }
+
+    private Timing start(Tunnel tunnel, Semaphore context) throws InterruptedException {
+        context.acquire();
+        try {
+            var started = System.nanoTime();
+            tunnel.start();
+            keepAlive.addTunnel(tunnel);
+            var ready = awaitReady(tunnel);
+            return new Timing(tunnel, Duration.ofNanos(System.nanoTime() - started), ready);
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Waits for kubectl to say it is forwarding, probing the tunnel now and then in case it never
+     * does.
+     */
+    private static boolean awaitReady(Tunnel tunnel) throws InterruptedException {
+        var deadline = System.nanoTime() + READY_TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            try {
+                tunnel.getReady().get(PROBE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                if (!tunnel.isStarted()) {
+                    return false;
+                }
+                if (tunnel.getState() == Tunnel.State.STARTING && tunnel.isAlive()) {
+                    return true;
+                }
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static Timing result(Future<Timing> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+import org.snakeyaml.engine.v2.api.Dump;
+import org.snakeyaml.engine.v2.api.DumpSettings;
+import org.snakeyaml.engine.v2.api.Load;
+import org.snakeyaml.engine.v2.api.LoadSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers which tunnels were running, so the next run of tunnellen can start the same ones, and
+ * take over the kubectl processes that are still running if tunnellen died without stopping them.
+ * The snapshot is rewritten shortly after any tunnel changes state, through a temporary file that
+ * is moved over the old one, so a crash never leaves half a snapshot.
+ * <p>
+ * kubectl writes its output to files in the same directory, see {@link KubectlProcess}.
+ */
+class StateStore {
+    private static final Logger log = (Logger) LoggerFactory.getLogger(StateStore.class);
+    private static final Duration SETTLE = Duration.ofMillis(200);
+    private static final Executor VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final String FILE = "state.yaml";
+
+    /**
+     * A running tunnel as it was last seen.
+     *
+     * @param pid            the kubectl process, or -1
+     * @param processStarted when the kubectl process started, to tell it from a later process with the same pid
+     * @param port           the local port kubectl forwards the tunnel from, or -1
+     * @param output         where kubectl writes its output, without the extension, or null
+     */
+    record Entry(String id, Instant readyAt, long pid, Instant processStarted, int port, Path output) {
+        /**
+         * The kubectl process, if it is still the one that was running.
+         */
+        Optional<ProcessHandle> process() {
+            if (pid <= 0 || port <= 0 || processStarted == null) {
+                return Optional.empty();
+            }
+            return ProcessHandle.of(pid)
+                    .filter(ProcessHandle::isAlive)
+                    .filter(p -> p.info().startInstant().map(processStarted::equals).orElse(false))
+                    .filter(p -> p.info().commandLine().or(() -> p.info().command()).map(c -> c.contains("kubectl")).orElse(false));
+        }
+    }
+
+    private final Path directory;
+    private final Path file;
+    private final TunnelRegistry registry;
+    private final Consumer<Tunnel> listener = t -> schedule();
+    // Not a monitor, so a virtual thread writing the file doesn't hold on to its carrier
+    private final ReentrantLock writing = new ReentrantLock();
+    private boolean scheduled = false;
+    private volatile boolean closed = false;
+
+    StateStore(Path directory, TunnelRegistry registry) throws IOException {
+        this.directory = directory;
+        this.file = directory.resolve(FILE);
+        this.registry = registry;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * A directory of its own for every configuration file, so instances with different
+     * configurations don't share state.
+     */
+    static Path defaultDirectory(File config) {
+        var path = config.getAbsoluteFile().toPath().normalize().toString();
+        String name;
+        try {
+            name = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8)), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            name = Integer.toHexString(path.hashCode());
+        }
+        return Path.of(System.getProperty("user.home"), ".tunnellen", name);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The tunnels that were running when the snapshot was last written, by id.
+     */
+    Map<String, Entry> load() {
+        if (!Files.exists(file)) {
+            return Map.of();
+        }
+        try {
+            var yaml = new Load(LoadSettings.builder().build()).loadFromString(Files.readString(file));
+            if (!(yaml instanceof Map<?, ?> root) || !(root.get("tunnels") instanceof Map<?, ?> tunnels)) {
+                return Map.of();
+            }
+            var entries = new LinkedHashMap<String, Entry>();
+            tunnels.forEach((id, value) -> {
+                if (value instanceof Map<?, ?> m) {
+                    entries.put(String.valueOf(id), new Entry(String.valueOf(id),
+                            instant(m.get("readyAt")),
+                            m.get("pid") instanceof Number n ? n.longValue() : -1,
+                            instant(m.get("processStarted")),
+                            m.get("port") instanceof Number n ? n.intValue() : -1,
+                            m.get("output") instanceof String s ? Path.of(s) : null));
+                }
+            });
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read {}: {}", file, e.getMessage());
+            return Map.of();
+        }
+    }
+
+    /**
+     * Starts writing the snapshot whenever a tunnel changes state.
+     */
+    void start() {
+        Tunnel.addStateListener(listener);
+        schedule();
+    }
+
+    /**
+     * Writes the snapshot one last time and stops following changes, so tunnels stopped while
+     * shutting down are still started by the next run.
+     */
+    void close() {
+        Tunnel.removeStateListener(listener);
+        writing.lock();
+        try {
+            if (!closed) {
+                write();
+                closed = true;
+            }
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /**
+     * Deletes kubectl output files nobody writes to any more.
+     */
+    void deleteOutputs(Collection<Path> keep) {
+        var kept = keep.stream().map(p -> p.getFileName().toString()).collect(Collectors.toSet());
+        try (var files = Files.list(directory)) {
+            files.filter(f -> f.getFileName().toString().startsWith("kubectl-"))
+                    .filter(f -> !kept.contains(f.getFileName().toString().replaceFirst("\\.(out|err)$", "")))
+                    .forEach(f -> {
+                        try {
+                            Files.deleteIfExists(f);
+                        } catch (IOException e) {
+                            log.debug("Could not delete {}: {}", f, e.getMessage());
+                        }
+                    });
+        } catch (IOException e) {
+            log.debug("Could not list {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private synchronized void schedule() {
+        if (!scheduled && !closed) {
+            scheduled = true;
+            CompletableFuture.delayedExecutor(SETTLE.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS).execute(() -> {
+                synchronized (this) {
+                    scheduled = false;
+                }
+                writing.lock();
+                try {
+                    if (!closed) {
+                        write();
+                    }
+                } finally {
+                    writing.unlock();
+                }
+            });
+        }
+    }
+
+    private void write() {
+        var tunnels = new LinkedHashMap<String, Object>();
+        registry.all().stream().filter(Tunnel::isStarted).forEach(t -> tunnels.put(t.getId(), entry(t)));
+        var yaml = new Dump(DumpSettings.builder().build()).dumpToString(Map.of("tunnels", tunnels));
+        var temporary = directory.resolve(FILE + ".tmp");
+        try {
+            Files.writeString(temporary, yaml);
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("Could not write {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> entry(Tunnel tunnel) {
+        var entry = new LinkedHashMap<String, Object>();
+        tunnel.getReadyAt().ifPresent(r -> entry.put("readyAt", r.toString()));
+        var process = tunnel.getProcess().orElse(null);
+        var output = tunnel.getProcessOutput().orElse(null);
+        // Only a kubectl writing to files survives tunnellen
+        if (process != null && output != null && tunnel.getState() == Tunnel.State.RUNNING && tunnel.getForwardingPort() > 0) {
+            process.info().startInstant().ifPresent(started -> {
+                entry.put("pid", process.pid());
+                entry.put("processStarted", started.toString());
+                entry.put("port", tunnel.getForwardingPort());
+                entry.put("output", output.toString());
+            });
+        }
+        return entry;
+    }
+
+    private static Instant instant(Object value) {
+        try {
+            return value instanceof String s ? Instant.parse(s) : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
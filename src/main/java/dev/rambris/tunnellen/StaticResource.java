@@ -0,0 +1,113 @@
+package dev.rambris.tunnellen;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content that never changes while tunnellen runs, encoded and compressed once. Pages link to it
+ * with {@link #getUrl()}, which carries the version, so browsers may cache it for a long time.
+ */
+class StaticResource {
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "public, max-age=300";
+
+    private final String path;
+    private final String contentType;
+    private final byte[] bytes;
+    private final byte[] gzipped;
+    private final String version;
+    private final String etag;
+
+    StaticResource(String path, String contentType, String content) {
+        this.path = path;
+        this.contentType = contentType;
+        this.bytes = content.getBytes(StandardCharsets.UTF_8);
+        this.gzipped = gzip(bytes);
+        this.version = hash(bytes);
+        this.etag = "\"" + version + "\"";
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getUrl() {
+        return path + "?v=" + version;
+    }
+
+    void serve(HttpExchange httpExchange) throws IOException {
+        var headers = httpExchange.getResponseHeaders();
+        var versioned = Optional.ofNullable(httpExchange.getRequestURI().getQuery()).filter(q -> q.equals("v=" + version)).isPresent();
+        headers.set("Cache-Control", versioned ? IMMUTABLE : REVALIDATE);
+        headers.set("ETag", etag);
+        headers.set("Vary", "Accept-Encoding");
+
+        if (matches(httpExchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            httpExchange.sendResponseHeaders(304, -1);
+            httpExchange.close();
+            return;
+        }
+
+        headers.set("Content-Type", contentType);
+        var body = bytes;
+        if (acceptsGzip(httpExchange)) {
+            headers.set("Content-Encoding", "gzip");
+            body = gzipped;
+        }
+        if (httpExchange.getRequestMethod().equalsIgnoreCase("HEAD")) {
+            httpExchange.sendResponseHeaders(200, -1);
+            httpExchange.close();
+            return;
+        }
+        httpExchange.sendResponseHeaders(200, body.length);
+        try (var out = httpExchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (var tag : ifNoneMatch.split(",")) {
+            var t = tag.strip();
+            if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean acceptsGzip(HttpExchange httpExchange) {
+        var accept = httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return accept != null && accept.toLowerCase().contains("gzip");
+    }
+
+    static byte[] gzip(byte[] bytes) {
+        var out = new ByteArrayOutputStream(bytes.length / 3 + 32);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(Arrays.hashCode(bytes));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package dev.rambris.tunnellen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Reads a file another process keeps appending to, like {@code tail -f}. At the end of the file it
+ * waits for more, polling less often the longer nothing arrives, and ends once the writer is gone
+ * and everything it wrote has been read.
+ */
+class TailInputStream extends InputStream {
+    private static final long MIN_POLL_MILLIS = 10;
+    private static final long MAX_POLL_MILLIS = 500;
+
+    private final FileChannel channel;
+    private final BooleanSupplier writing;
+    private volatile boolean closed = false;
+
+    /**
+     * @param fromEnd whether to skip what is already in the file
+     * @param writing whether the writer may still append
+     */
+    TailInputStream(Path file, boolean fromEnd, BooleanSupplier writing) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.writing = writing;
+        if (fromEnd) {
+            channel.position(channel.size());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        var poll = MIN_POLL_MILLIS;
+        while (!closed) {
+            var n = channel.read(ByteBuffer.wrap(b, off, len));
+            if (n > 0) {
+                return n;
+            }
+            // One more read once the writer is gone, for what it wrote just before exiting
+            if (!writing.getAsBoolean()) {
+                n = channel.read(ByteBuffer.wrap(b, off, len));
+                return n > 0 ? n : -1;
+            }
+            try {
+                Thread.sleep(poll);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            poll = Math.min(MAX_POLL_MILLIS, poll * 2);
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+}
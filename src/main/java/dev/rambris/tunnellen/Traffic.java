@@ -0,0 +1,71 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection and byte counters of a tunnel. They belong to the tunnel rather than its relay, so
+ * they keep growing across stops and restarts.
+ */
+class Traffic {
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicLong totalConnections = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private volatile long idleSince = System.nanoTime();
+
+    void opened() {
+        totalConnections.incrementAndGet();
+        activeConnections.incrementAndGet();
+    }
+
+    /**
+     * @return true if this was the last active connection
+     */
+    boolean closed() {
+        if (activeConnections.decrementAndGet() == 0) {
+            idleSince = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
+
+    void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Bytes from clients to the upstream.
+     */
+    long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Bytes from the upstream to clients.
+     */
+    long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    long getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * How long there have been no active connections, or {@link Duration#ZERO} if there are any.
+     */
+    Duration getIdleTime() {
+        return activeConnections.get() > 0 ? Duration.ZERO : Duration.ofNanos(System.nanoTime() - idleSince);
+    }
+}
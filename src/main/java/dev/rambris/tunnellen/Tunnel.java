@@ -4,16 +4,28 @@ import ch.qos.logback.classic.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class Tunnel implements Comparable<Tunnel> {
     public enum Type {
@@ -21,6 +33,33 @@ public class Tunnel implements Comparable<Tunnel> {
         DATABASE
     }
 
+    public enum Backend {
+        /** Runs kubectl port-forward */
+        KUBECTL,
+        /** Forwards through the apiserver from within tunnellen */
+        NATIVE
+    }
+
+    public enum State {
+        STOPPED,
+        /** Lazy tunnel listening for the first connection */
+        IDLE,
+        STARTING,
+        RUNNING,
+        /** kubectl exited and is about to be restarted */
+        BACKOFF,
+        /** kubectl keeps failing and is only retried now and then */
+        FAILED
+    }
+
+    private static final Duration RELAY_QUEUE_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration LAZY_QUEUE_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration STABLE_AFTER = Duration.ofSeconds(30);
+    private static final Executor VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final List<Consumer<Tunnel>> stateListeners = new CopyOnWriteArrayList<>();
+    private static final AtomicLong changes = new AtomicLong();
+
     private final Logger log;
     private final String group;
     private final String context;
@@ -28,15 +67,46 @@ public class Tunnel implements Comparable<Tunnel> {
     private final int localPort;
     private final String destinationPort;
     private final Optional<String> namespace;
-    private final Optional<Type> type;
-    private final Database database;
-    private final boolean startOnStartup;
-    private Process proc = null;
+    private volatile Optional<Type> type;
+    private volatile Database database;
+    private volatile boolean startOnStartup;
+    private final boolean useRelay;
+    private final boolean lazy;
+    private final Duration idleTimeout;
+    private volatile Optional<Duration> keepAliveInterval;
+    private final Backend backend;
+    private final int pods;
+    private final Relay.Balance balance;
+    private final HttpProxy.Pool proxyPool;
+    private final long cacheSize;
+    private final ResponseCache cache;
+    private final PgPooler.Settings poolSettings;
+    private final Duration slowQuery;
+    private final QueryStats queries;
+    private volatile KubectlProcess.Member member = null;
+    private volatile PortForward forward = null;
+    private volatile Balancer balancer = null;
+    private volatile Relay relay = null;
+    private volatile HttpProxy proxy = null;
+    private volatile PgPooler pooler = null;
+    private volatile State state = State.STOPPED;
+    private final Backoff backoff = new Backoff();
+    private final Histogram probeLatency = new Histogram();
+    private final AtomicLong probeFailures = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final Traffic traffic = new Traffic();
+    private volatile long rssBytes = -1;
+    private long generation = 0;
+    private volatile long processStarted;
     private String id;
-    private LocalDateTime lastCheck = LocalDateTime.MIN;
-    private AsyncInputStreamReader outputReader;
+    private final TunnelLog output;
+    private volatile LocalDateTime lastCheck = LocalDateTime.MIN;
+    private volatile long changed = changes.incrementAndGet();
+    private volatile Instant readyAt = null;
+    private volatile int forwardingPort = -1;
+    private volatile CompletableFuture<Void> ready = new CompletableFuture<>();
 
-    public Tunnel(String group, String context, String target, String namespace, int localPort, String destinationPort, boolean startOnStartup, Type type, Database database) {
+    public Tunnel(String group, String context, String target, String namespace, int localPort, String destinationPort, boolean startOnStartup, Type type, Database database, boolean useRelay, boolean lazy, Duration idleTimeout, Duration keepAliveInterval, Backend backend, int pods, Relay.Balance balance, HttpProxy.Pool proxy, long cacheSize, PgPooler.Settings pool, Duration slowQuery) {
         log = (Logger) LoggerFactory.getLogger("tunnel." + context + "." + target + "[" + localPort + ":" + destinationPort + "]");
         this.group = group;
         this.context = context;
@@ -47,6 +117,32 @@ public class Tunnel implements Comparable<Tunnel> {
         this.destinationPort = destinationPort;
         this.startOnStartup = startOnStartup;
         this.database = database;
+        if (proxy != null && type != Type.HTTP) {
+            log.warn("Only http forwards can be proxied, relaying connections instead");
+        }
+        this.proxyPool = type == Type.HTTP ? proxy : null;
+        this.cacheSize = cacheSize;
+        this.cache = proxyPool != null && cacheSize > 0 ? new ResponseCache(cacheSize) : null;
+        var postgres = type == Type.DATABASE && database != null && database.kind() == Database.Kind.POSTGRESQL;
+        if (pool != null && !postgres) {
+            log.warn("Only postgresql database forwards can be pooled, relaying connections instead");
+        }
+        this.poolSettings = postgres ? pool : null;
+        var observable = type == Type.DATABASE && database != null;
+        if (slowQuery != null && !observable) {
+            log.warn("Only database forwards with a database kind can be observed for queries");
+        }
+        this.slowQuery = observable ? slowQuery : null;
+        this.queries = this.slowQuery != null ? new QueryStats(database.kind(), slowQuery) : null;
+        // A lazy tunnel has to own the local port to notice the first connection, and connections
+        // can only be spread over several pods, pooled by the proxy or observed from behind it
+        this.useRelay = useRelay || lazy || pods > 1 || proxy != null || pool != null || this.slowQuery != null;
+        this.lazy = lazy;
+        this.idleTimeout = idleTimeout;
+        this.keepAliveInterval = Optional.ofNullable(keepAliveInterval);
+        this.backend = backend;
+        this.pods = pods;
+        this.balance = balance;
 
         try {
             var digest = MessageDigest.getInstance("SHA-256").digest((group + context + target + namespace + localPort + destinationPort).getBytes());
@@ -55,71 +151,596 @@ public class Tunnel implements Comparable<Tunnel> {
             log.warn("Could not create UUID from SHA-256, using random UUID instead. {}", e.getMessage());
             id = UUID.randomUUID().toString();
         }
+        this.output = new TunnelLog(id);
+    }
+
+    /**
+     * Starts the tunnel. A lazy tunnel only starts listening on its local port and starts kubectl
+     * when the first connection arrives.
+     */
+    public synchronized void start() {
+        if (!open()) {
+            return;
+        }
+        if (lazy) {
+            setState(State.IDLE);
+        } else {
+            startProcess();
+        }
+    }
+
+    /**
+     * Starts the tunnel with a kubectl left running by an earlier run of tunnellen, which is
+     * already forwarding the tunnel's port to the given local port. Only for tunnels that run
+     * kubectl all the time.
+     *
+     * @param output where kubectl writes its output, without the extension
+     * @return false if the tunnel can't adopt a process and has to be started instead
+     */
+    synchronized boolean adopt(ProcessHandle process, int port, Path output) {
+        if (backend != Backend.KUBECTL || pods > 1 || lazy || isStarted() || !open()) {
+            return false;
+        }
+        member = KubectlProcess.adopt(this, process, output);
+        processStarted = System.nanoTime();
+        setState(State.STARTING);
+        log.info("Adopted kubectl with pid {}", process.pid());
+        forwarding(port);
+        return true;
+    }
+
+    /**
+     * Prepares a start, opening the local listeners if connections are relayed.
+     */
+    private boolean open() {
+        generation++;
+        if (ready.isDone()) {
+            ready = new CompletableFuture<>();
+        }
+        backoff.reset();
+        if (useRelay && relay == null) {
+            try {
+                // Behind the proxy or pooler the relay only takes their upstream connections
+                var address = proxyPool != null || poolSettings != null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0) : new InetSocketAddress(localPort);
+                relay = new Relay(log, address, lazy ? LAZY_QUEUE_TIMEOUT : RELAY_QUEUE_TIMEOUT, traffic, this::onConnect, this::onIdle, balance, queries);
+                relay.open();
+                if (proxyPool != null) {
+                    proxy = new HttpProxy(log, localPort, relay.getAddress(), proxyPool, cache);
+                    proxy.open();
+                }
+                if (poolSettings != null) {
+                    pooler = new PgPooler(log, localPort, relay.getAddress(), poolSettings);
+                    pooler.open();
+                }
+            } catch (IOException e) {
+                log.error("Could not listen on port {}: {}", localPort, e.getMessage());
+                relay.close();
+                relay = null;
+                proxy = null;
+                pooler = null;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restarts kubectl. In relay mode the local port stays open and new connections are held
+     * until kubectl is forwarding again.
+     */
+    public synchronized void restart() {
+        if (state == State.STOPPED || state == State.IDLE) {
+            return;
+        }
+        generation++;
+        restarts.incrementAndGet();
+        if (member != null) {
+            // kubectl can't restart one port alone, it is replaced for every tunnel sharing it
+            processStarted = System.nanoTime();
+            member.replace();
+            return;
+        }
+        stopProcess();
+        startProcess();
     }
 
-    public void start() {
-        var cmd = new String[]{
-                "kubectl",
-                "--context=" + context,
-                "port-forward",
-                "--address", "0.0.0.0",
-                "--namespace", namespace.orElse("default"),
-                target,
-                localPort + ":" + destinationPort
-        };
+    private void onConnect() {
+        if (lazy && state == State.IDLE) {
+            VIRTUAL_THREADS.execute(this::activate);
+        }
+    }
+
+    private synchronized void activate() {
+        if (state == State.IDLE) {
+            log.info("Connection on port {}, starting tunnel", localPort);
+            startProcess();
+        }
+    }
+
+    private void onIdle() {
+        if (lazy) {
+            CompletableFuture.delayedExecutor(idleTimeout.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS)
+                    .execute(this::stopIfIdle);
+        }
+    }
+
+    private synchronized void stopIfIdle() {
+        if (relay != null && (member != null || forward != null || balancer != null) && traffic.getIdleTime().compareTo(idleTimeout) >= 0) {
+            log.info("No connections for {} s, stopping tunnel until next connection", idleTimeout.toSeconds());
+            stopProcess();
+            setState(State.IDLE);
+            if (traffic.getActiveConnections() > 0) {
+                // A connection arrived while kubectl was stopping
+                startProcess();
+            }
+        }
+    }
+
+    private void startProcess() {
+        if (pods > 1) {
+            startBalanced();
+            return;
+        }
+        if (backend == Backend.NATIVE) {
+            startForward();
+            return;
+        }
+        if (member != null) {
+            // Still a member of a kubectl that exited, which starts again for all its members
+            member.rejoin();
+        } else {
+            member = KubectlProcess.join(this);
+        }
+        processStarted = System.nanoTime();
+        setState(State.STARTING);
+        log.info("Started tunnel");
+    }
+
+    /**
+     * Starts forwarding from within tunnellen. It listens where kubectl would and counts as
+     * forwarding once the pod has been found.
+     */
+    private void startForward() {
+        var address = useRelay ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0) : new InetSocketAddress(localPort);
+        var f = new PortForward(log, context, namespace.orElse(null), target, destinationPort, address);
         try {
-            proc = new ProcessBuilder(cmd).start();
+            var port = f.open();
+            forward = f;
+            processStarted = System.nanoTime();
+            setState(State.STARTING);
             log.info("Started tunnel");
-            outputReader = new AsyncInputStreamReader(proc.getInputStream(), this::handleOutput);
+            VIRTUAL_THREADS.execute(() -> {
+                try {
+                    f.resolve();
+                    synchronized (this) {
+                        if (f == forward) {
+                            forwarding(port);
+                        }
+                    }
+                } catch (IOException e) {
+                    onForwardFailed(f, e);
+                }
+            });
         } catch (IOException e) {
-            System.err.println(e.getMessage());
+            log.error("Could not listen on port {}: {}", address.getPort(), e.getMessage());
+            f.close();
+            scheduleRestart();
         }
     }
 
-    private void handleOutput(String line) {
-        log.info(line);
+    /**
+     * Starts forwarding to up to {@code pods} ready pods, each through a port-forward of its own,
+     * and counts as forwarding once at least one of them has been found.
+     */
+    private void startBalanced() {
+        var b = new Balancer(log, context, namespace.orElse(null), target, destinationPort, pods);
+        balancer = b;
+        processStarted = System.nanoTime();
+        setState(State.STARTING);
+        log.info("Started tunnel");
+        VIRTUAL_THREADS.execute(() -> {
+            try {
+                var legs = b.refresh();
+                synchronized (this) {
+                    if (b == balancer && relay != null) {
+                        relay.setUpstreams(legs.stream().map(Balancer.Leg::address).toList());
+                        if (state == State.STARTING) {
+                            setState(State.RUNNING);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                onForwardFailed(b, e);
+            }
+        });
+    }
+
+    private synchronized void onForwardFailed(Object failed, IOException e) {
+        if (failed == forward || failed == balancer) {
+            log.warn("Could not find what to forward to: {}", e.getMessage());
+            stopProcess();
+            scheduleRestart();
+        }
+    }
+
+    /**
+     * Restarts kubectl right away when it exits on its own, backing off when it keeps failing.
+     * The tunnel stays a member of the kubectl it shared, so one restart brings back all of them.
+     */
+    synchronized void exited(KubectlProcess.Member exited, int exitValue) {
+        if (exited != member) {
+            // Stopped or restarted on purpose
+            return;
+        }
+        log.warn("kubectl exited with code {}", exitValue);
+        output.append(TunnelLog.Stream.EVENT, "kubectl exited with code " + exitValue);
+        if (Duration.ofNanos(System.nanoTime() - processStarted).compareTo(STABLE_AFTER) >= 0) {
+            backoff.reset();
+        }
+        if (lazy && relay != null && traffic.getActiveConnections() == 0) {
+            stopProcess();
+            setState(State.IDLE);
+        } else {
+            if (relay != null) {
+                relay.setUpstream(null);
+            }
+            scheduleRestart();
+        }
+    }
+
+    /**
+     * Restarts the tunnel after it failed a check, backing off like when kubectl exits. A kubectl
+     * is stopped for all tunnels sharing it, which then restart like when it exits on its own.
+     */
+    synchronized void checkFailed() {
+        if (state != State.STARTING && state != State.RUNNING) {
+            return;
+        }
+        log.warn("Tunnel is not alive");
+        output.append(TunnelLog.Stream.EVENT, "check failed");
+        if (member != null) {
+            member.fail();
+            return;
+        }
+        stopProcess();
+        scheduleRestart();
+    }
+
+    private void scheduleRestart() {
+        CircuitBreaker.of(context).failure(this);
+        var delay = backoff.failure();
+        var scheduled = ++generation;
+        if (backoff.isOpen()) {
+            log.error("Tunnel keeps failing, next attempt in {} s", delay.toSeconds());
+            setState(State.FAILED);
+        } else {
+            log.info("Restarting tunnel in {} ms", delay.toMillis());
+            setState(State.BACKOFF);
+        }
+        CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS)
+                .execute(() -> restartAfterBackoff(scheduled));
+    }
+
+    private synchronized void restartAfterBackoff(long scheduled) {
+        if (scheduled == generation && (state == State.BACKOFF || state == State.FAILED)) {
+            if (!CircuitBreaker.of(context).allow(this, () -> restartAfterBackoff(scheduled))) {
+                log.info("Circuit of context {} is open, waiting", context);
+                changed();
+                return;
+            }
+            restarts.incrementAndGet();
+            startProcess();
+        }
+    }
+
+    /**
+     * Called when kubectl is forwarding this tunnel's port.
+     */
+    void forwarding(KubectlProcess.Member forwarding, int port) {
+        if (forwarding != member) {
+            return;
+        }
+        if (state == State.BACKOFF || state == State.FAILED) {
+            // Another tunnel sharing kubectl started it again, not from kubectl's reader thread
+            // since that would have to wait for the tunnel
+            VIRTUAL_THREADS.execute(() -> resumed(forwarding, port));
+        } else {
+            forwarding(port);
+        }
+    }
+
+    /**
+     * Called when kubectl already forwards this tunnel's port, because another tunnel sharing it
+     * started it again or it kept forwarding the port since this tunnel left.
+     */
+    synchronized void resumed(KubectlProcess.Member resumed, int port) {
+        if (resumed != member) {
+            return;
+        }
+        if (state == State.BACKOFF || state == State.FAILED) {
+            // Cancels the restart this tunnel had scheduled
+            generation++;
+            restarts.incrementAndGet();
+            processStarted = System.nanoTime();
+            setState(State.STARTING);
+        }
+        // Also when the scheduled restart got here first and found kubectl already running
+        forwarding(port);
+    }
+
+    /**
+     * Called when kubectl is replaced because a tunnel sharing it joined or left.
+     */
+    void paused(KubectlProcess.Member paused) {
+        if (paused == member) {
+            var relay = this.relay;
+            if (relay != null) {
+                relay.setUpstream(null);
+            }
+            if (state == State.RUNNING) {
+                setState(State.STARTING);
+            }
+        }
+    }
+
+    private void forwarding(int port) {
+        forwardingPort = port;
+        var relay = this.relay;
+        if (relay != null) {
+            relay.setUpstream(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        if (state == State.STARTING) {
+            setState(State.RUNNING);
+        }
+    }
+
+    /**
+     * Registers a listener called on every state change of any tunnel. Listeners are called while
+     * the tunnel is locked and must not block.
+     */
+    static void addStateListener(Consumer<Tunnel> listener) {
+        stateListeners.add(listener);
+    }
+
+    static void removeStateListener(Consumer<Tunnel> listener) {
+        stateListeners.remove(listener);
+    }
+
+    private void setState(State state) {
+        if (this.state != state) {
+            this.state = state;
+            if (state == State.RUNNING || state == State.IDLE) {
+                ready.complete(null);
+            }
+            if (state == State.RUNNING) {
+                readyAt = Instant.now();
+                CircuitBreaker.of(context).success();
+            }
+            changed();
+            output.append(TunnelLog.Stream.EVENT, state.name().toLowerCase());
+            stateListeners.forEach(l -> l.accept(this));
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Completes when the tunnel is first seen forwarding after a start, or listening if it is lazy.
+     */
+    CompletableFuture<Void> getReady() {
+        return ready;
     }
 
     public boolean isRunning() {
-        return proc != null && proc.isAlive();
+        var member = this.member;
+        return member != null && member.process().isPresent() || forward != null || balancer != null;
     }
 
+    /**
+     * Whether the tunnel has been started, even if kubectl is currently idle or waiting to be
+     * restarted.
+     */
     public boolean isStarted() {
-        return proc != null;
+        return state != State.STOPPED;
+    }
+
+    /**
+     * A lazy tunnel that is listening for connections but has no kubectl running.
+     */
+    public boolean isIdle() {
+        return state == State.IDLE;
     }
 
+    /**
+     * Probes the upstream with a protocol-aware check and records the latency.
+     */
     public boolean isAlive() {
+        var balancer = this.balancer;
+        if (balancer != null) {
+            return isBalancedAlive(balancer);
+        }
+        // In relay mode the local port is always open, so check kubectl's port instead
+        var address = relay != null ? relay.getUpstream() : new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort);
+        if (address == null) {
+            log.debug("Tunnel is not forwarding yet");
+            probeFailures.incrementAndGet();
+            return false;
+        }
+        log.info("Checking tunnel");
+        if (!probe(address)) {
+            probeFailures.incrementAndGet();
+            return false;
+        }
+        alive();
+        return true;
+    }
+
+    /**
+     * Looks up the pods again and probes each of them. Connections are only sent to the pods that
+     * answer, and the tunnel is alive as long as one does.
+     */
+    private boolean isBalancedAlive(Balancer balancer) {
+        log.info("Checking tunnel");
+        List<Balancer.Leg> legs;
+        try {
+            legs = balancer.refresh();
+        } catch (IOException e) {
+            log.warn("Could not look up pods, checking the ones already known: {}", e.getMessage());
+            legs = balancer.legs();
+        }
+        var healthy = legs.stream().filter(l -> probe(l.address())).map(Balancer.Leg::address).toList();
+        if (healthy.size() < legs.size()) {
+            log.info("{} of {} pods answer", healthy.size(), legs.size());
+        }
+        synchronized (this) {
+            if (balancer != this.balancer) {
+                return false;
+            }
+            if (relay != null) {
+                relay.setUpstreams(healthy);
+            }
+        }
+        if (healthy.isEmpty()) {
+            probeFailures.incrementAndGet();
+            return false;
+        }
+        alive();
+        return true;
+    }
+
+    private boolean probe(InetSocketAddress address) {
+        var probe = Probe.of(type, database);
+        var started = System.nanoTime();
         try (var sock = new Socket()) {
-            log.info("Checking tunnel");
-            sock.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort), 2000);
-            lastCheck = LocalDateTime.now();
-            log.debug("Tunnel is alive");
+            sock.connect(address, (int) PROBE_TIMEOUT.toMillis());
+            sock.setSoTimeout((int) PROBE_TIMEOUT.toMillis());
+            probe.check(sock);
+            probeLatency.record(System.nanoTime() - started);
             return true;
         } catch (IOException e) {
-            log.debug("Tunnel is not alive: {}", e.getMessage());
+            log.debug("{} is not alive ({} probe): {}", address, probe, e.getMessage());
             return false;
         }
     }
 
-    public void stop() {
-        if (proc != null && proc.isAlive()) {
+    private void alive() {
+        // Not a change, the list shows checks from the API rather than rendering them
+        lastCheck = LocalDateTime.now();
+        backoff.reset();
+        CircuitBreaker.of(context).success();
+        ready.complete(null);
+        log.debug("Tunnel is alive");
+    }
+
+    public synchronized void stop() {
+        generation++;
+        CircuitBreaker.of(context).remove(this);
+        stopProcess();
+        if (proxy != null) {
+            proxy.close();
+            proxy = null;
+        }
+        if (pooler != null) {
+            pooler.close();
+            pooler = null;
+        }
+        if (relay != null) {
+            relay.close();
+            relay = null;
+        }
+        setState(State.STOPPED);
+    }
+
+    private void stopProcess() {
+        if (relay != null) {
+            relay.setUpstream(null);
+        }
+        var forward = this.forward;
+        this.forward = null;
+        if (forward != null) {
             log.info("Stopping tunnel");
-            proc.destroy();
-            outputReader.stop();
-            try {
-                proc.waitFor(10, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+            forward.close();
+        }
+        var balancer = this.balancer;
+        this.balancer = null;
+        if (balancer != null) {
+            log.info("Stopping tunnel");
+            balancer.close();
+        }
+        var member = this.member;
+        this.member = null;
+        if (member != null) {
+            log.info("Stopping tunnel");
+            member.leave();
             log.info("Tunnel stopped");
         }
-        proc = null;
     }
 
     public String getId() {
         return id;
     }
 
+    /**
+     * Whether the other tunnel is configured exactly like this one.
+     */
+    boolean sameSpec(Tunnel other) {
+        return id.equals(other.id)
+               && startOnStartup == other.startOnStartup
+               && backend == other.backend
+               && pods == other.pods
+               && balance == other.balance
+               && Objects.equals(proxyPool, other.proxyPool)
+               && cacheSize == other.cacheSize
+               && Objects.equals(poolSettings, other.poolSettings)
+               && Objects.equals(slowQuery, other.slowQuery)
+               && useRelay == other.useRelay
+               && lazy == other.lazy
+               && type.equals(other.type)
+               && Objects.equals(database, other.database)
+               && Objects.equals(idleTimeout, other.idleTimeout)
+               && keepAliveInterval.equals(other.keepAliveInterval);
+    }
+
+    /**
+     * Whether taking on the settings of the other tunnel means kubectl and the local listener
+     * have to be restarted. Everything the id is made from is the same for both.
+     */
+    boolean needsRestart(Tunnel other) {
+        return backend != other.backend || pods != other.pods || balance != other.balance || !Objects.equals(proxyPool, other.proxyPool) || cacheSize != other.cacheSize || !Objects.equals(poolSettings, other.poolSettings) || !Objects.equals(slowQuery, other.slowQuery) || getQueryKind() != other.getQueryKind() || useRelay != other.useRelay || lazy != other.lazy || !Objects.equals(idleTimeout, other.idleTimeout);
+    }
+
+    /**
+     * Takes on the settings of the other tunnel that can change while kubectl is running.
+     */
+    synchronized void update(Tunnel other) {
+        startOnStartup = other.startOnStartup;
+        type = other.type;
+        database = other.database;
+        keepAliveInterval = other.keepAliveInterval;
+        changed();
+    }
+
+    private void changed() {
+        changed = changes.incrementAndGet();
+    }
+
+    /**
+     * Increases whenever the state or settings of any tunnel change, so views of all tunnels know
+     * when they are out of date. Checks don't count.
+     */
+    static long changes() {
+        return changes.get();
+    }
+
+    /**
+     * The value of {@link #changes()} when this tunnel last changed.
+     */
+    long getChanged() {
+        return changed;
+    }
+
     public String getContext() {
         return context;
     }
@@ -144,10 +765,198 @@ public class Tunnel implements Comparable<Tunnel> {
         return startOnStartup;
     }
 
+    /**
+     * Whether the tunnel is started when tunnellen starts or the tunnel is added. A lazy tunnel
+     * always is, since it only listens until the first connection arrives.
+     */
+    public boolean opensOnStartup() {
+        return startOnStartup || lazy;
+    }
+
+    public boolean isRelay() {
+        return useRelay;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * How many pods connections are spread over, at most.
+     */
+    public int getPods() {
+        return pods;
+    }
+
+    /**
+     * Whether HTTP requests are proxied over kept-alive upstream connections.
+     */
+    public boolean isProxy() {
+        return proxyPool != null;
+    }
+
+    /**
+     * The cache of proxied GET responses, if enabled.
+     */
+    Optional<ResponseCache> getCache() {
+        return Optional.ofNullable(cache);
+    }
+
+    /**
+     * The PostgreSQL pooler while the tunnel is started with one.
+     */
+    Optional<PgPooler> getPooler() {
+        return Optional.ofNullable(pooler);
+    }
+
+    /**
+     * The query counters, if the wire traffic is observed.
+     */
+    Optional<QueryStats> getQueries() {
+        return Optional.ofNullable(queries);
+    }
+
+    /**
+     * The circuit of the tunnel's context.
+     */
+    CircuitBreaker getCircuit() {
+        return CircuitBreaker.of(context);
+    }
+
+    /**
+     * Called when the circuit of the context changed while the tunnel waits for it.
+     */
+    synchronized void circuitChanged() {
+        changed();
+        stateListeners.forEach(l -> l.accept(this));
+    }
+
+    /**
+     * Recent kubectl output and state changes.
+     */
+    TunnelLog getOutput() {
+        return output;
+    }
+
+    /**
+     * A line kubectl wrote for this tunnel.
+     */
+    void output(String line, boolean error) {
+        output.append(error ? TunnelLog.Stream.ERR : TunnelLog.Stream.OUT, line);
+    }
+
+    private Database.Kind getQueryKind() {
+        return queries != null ? queries.getKind() : null;
+    }
+
+    /**
+     * When the tunnel last became ready, if it has.
+     */
+    Optional<Instant> getReadyAt() {
+        return Optional.ofNullable(readyAt);
+    }
+
+    /**
+     * The kubectl process forwarding this tunnel, if it is running.
+     */
+    Optional<ProcessHandle> getProcess() {
+        return Optional.ofNullable(member).flatMap(KubectlProcess.Member::process);
+    }
+
+    /**
+     * Where the kubectl process writes its output, without the extension, if it writes to files.
+     */
+    Optional<Path> getProcessOutput() {
+        return Optional.ofNullable(member).flatMap(KubectlProcess.Member::output);
+    }
+
+    /**
+     * The local port kubectl last said it forwards this tunnel from, or -1.
+     */
+    int getForwardingPort() {
+        return forwardingPort;
+    }
+
+    Relay.Balance getBalance() {
+        return balance;
+    }
+
+    /**
+     * How many addresses connections are currently relayed to.
+     */
+    int getUpstreamCount() {
+        var relay = this.relay;
+        return relay != null ? relay.getUpstreams().size() : 0;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public Optional<Duration> getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * How long ago kubectl or the forward was last started.
+     */
+    Duration getStartedFor() {
+        return Duration.ofNanos(System.nanoTime() - processStarted);
+    }
+
     public LocalDateTime getLastCheck() {
         return lastCheck;
     }
 
+    /**
+     * Samples the resident memory of kubectl so it can be reported without touching the process
+     * on every read. Only available where /proc exists.
+     */
+    void sampleResources() {
+        var proc = Optional.ofNullable(member).flatMap(KubectlProcess.Member::process).orElse(null);
+        if (proc == null) {
+            rssBytes = -1;
+            return;
+        }
+        var status = Path.of("/proc", String.valueOf(proc.pid()), "status");
+        try (var lines = Files.lines(status)) {
+            rssBytes = lines.filter(l -> l.startsWith("VmRSS:"))
+                    .map(l -> l.replaceAll("\\D+", ""))
+                    .mapToLong(kb -> Long.parseLong(kb) * 1024)
+                    .findFirst()
+                    .orElse(-1);
+        } catch (IOException | UncheckedIOException | NumberFormatException e) {
+            rssBytes = -1;
+        }
+    }
+
+    /**
+     * Resident memory of kubectl in bytes at the last sample, or -1 if unknown.
+     */
+    long getRssBytes() {
+        return rssBytes;
+    }
+
+    long getRestarts() {
+        return restarts.get();
+    }
+
+    Traffic getTraffic() {
+        return traffic;
+    }
+
+    Histogram getProbeLatency() {
+        return probeLatency;
+    }
+
+    long getProbeFailures() {
+        return probeFailures.get();
+    }
+
     public Optional<Type> getType() {
         return type;
     }
@@ -0,0 +1,109 @@
+package dev.rambris.tunnellen;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent output of a tunnel's kubectl, and what happened to the tunnel, so one tunnel can
+ * be looked into without going through the combined log. A fixed number of lines is kept and long
+ * lines are cut, so a tunnel never holds more than a few hundred kilobytes however much kubectl
+ * writes. Lines are numbered, so a reader can follow the log by asking for what came after the
+ * last line it got.
+ * <p>
+ * Every line is also handed to {@link LogFiles}, which writes it to the tunnel's file if enabled.
+ */
+class TunnelLog {
+    enum Stream {
+        /** kubectl standard output */
+        OUT,
+        /** kubectl standard error */
+        ERR,
+        /** Something tunnellen did, like a state change */
+        EVENT
+    }
+
+    /**
+     * A line of output.
+     *
+     * @param number counts all lines of the tunnel, also the ones no longer kept
+     */
+    record Line(long number, LocalDateTime at, Stream stream, String text) {
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+        String format() {
+            return "%s %-5s %s".formatted(TIME.format(at), stream.name().toLowerCase(), text);
+        }
+    }
+
+    static final int CAPACITY = 256;
+    static final int MAX_LINE_LENGTH = 1024;
+
+    private final String id;
+    // Not a monitor, so readers following the log can wait on a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    // Allocated with the first line, most tunnels never start
+    private Line[] lines;
+    private long next = 0;
+
+    TunnelLog(String id) {
+        this.id = id;
+    }
+
+    void append(Stream stream, String text) {
+        if (text.length() > MAX_LINE_LENGTH) {
+            text = text.substring(0, MAX_LINE_LENGTH) + "…";
+        }
+        Line line;
+        lock.lock();
+        try {
+            if (lines == null) {
+                lines = new Line[CAPACITY];
+            }
+            line = new Line(next, LocalDateTime.now(), stream, text);
+            lines[(int) (next++ % CAPACITY)] = line;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        LogFiles.write(id, line);
+    }
+
+    /**
+     * The kept lines numbered from the given number on, oldest first.
+     */
+    List<Line> since(long number) {
+        lock.lock();
+        try {
+            var from = Math.max(number, next - CAPACITY);
+            var since = new ArrayList<Line>((int) Math.max(0, next - from));
+            for (var n = Math.max(0, from); n < next; n++) {
+                since.add(lines[(int) (n % CAPACITY)]);
+            }
+            return since;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #since(long)}, but waits up to the timeout for a line if there is none yet.
+     */
+    List<Line> await(long number, Duration timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            var nanos = timeout.toNanos();
+            while (next <= number && nanos > 0) {
+                nanos = appended.awaitNanos(nanos);
+            }
+            return since(number);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package dev.rambris.tunnellen;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * All configured tunnels, indexed by id and group. Every mutation builds a new immutable
+ * {@link Snapshot} and publishes it atomically, so readers never lock and always see a consistent
+ * set of tunnels and indexes.
+ */
+class TunnelRegistry {
+
+    /**
+     * An immutable view of the registry. The version increases with every mutation.
+     */
+    record Snapshot(long version,
+                    List<Tunnel> tunnels,
+                    Map<String, Tunnel> byId,
+                    Map<String, List<Tunnel>> byGroup) {
+
+        static Snapshot of(long version, List<Tunnel> tunnels) {
+            var byId = new LinkedHashMap<String, Tunnel>();
+            tunnels.forEach(t -> byId.put(t.getId(), t));
+            return new Snapshot(version,
+                    List.copyOf(tunnels),
+                    Collections.unmodifiableMap(byId),
+                    tunnels.stream().collect(Collectors.collectingAndThen(
+                            Collectors.groupingBy(Tunnel::getGroup, LinkedHashMap::new, Collectors.toUnmodifiableList()),
+                            Collections::unmodifiableMap)));
+        }
+
+        Optional<Tunnel> get(String id) {
+            return Optional.ofNullable(id).map(byId::get);
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.of(0, List.of());
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    List<Tunnel> all() {
+        return snapshot.tunnels();
+    }
+
+    Optional<Tunnel> get(String id) {
+        return snapshot.get(id);
+    }
+
+    synchronized void addAll(Collection<Tunnel> added) {
+        update(tunnels -> {
+            var ids = tunnels.stream().map(Tunnel::getId).collect(Collectors.toSet());
+            var result = new ArrayList<>(tunnels);
+            added.stream().filter(t -> ids.add(t.getId())).forEach(result::add);
+            return result;
+        });
+    }
+
+    /**
+     * Applies an arbitrary change to the list of tunnels as one atomic mutation.
+     */
+    synchronized Snapshot update(UnaryOperator<List<Tunnel>> change) {
+        return publish(change.apply(snapshot.tunnels()));
+    }
+
+    private Snapshot publish(List<Tunnel> tunnels) {
+        snapshot = Snapshot.of(snapshot.version() + 1, tunnels);
+        return snapshot;
+    }
+}
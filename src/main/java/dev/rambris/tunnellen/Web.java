@@ -14,7 +14,13 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -23,30 +29,262 @@ public class Web {
 
     private static final Logger log = (Logger) LoggerFactory.getLogger(Web.class);
 
-    private Configuration config;
+    private static final StaticResource STYLE = new StaticResource("/style.css", "text/css", """
+                html { margin: 0; padding: 0; }
+                body {
+                    font-family: Arial, sans-serif;
+                    font-size: 90%;
+                    margin: 0; padding: 0;
+                    background-color: #151515;
+                    color: #b0b0b0;
+                }
+                main {
+                    margin: 1rem;
+                    width: fit-content;
+                    block-size: fit-content;
+                
+                }
+                footer {
+                    margin: 1rem;
+                    color: #888;
+                    font-size: 75%;
+                    border-top: 1px solid #282828;
+                }
+                table {
+                    border-collapse: collapse;
+                }
+                th, td {
+                    border: 1px solid #444;
+                    padding: 8px;
+                    text-align: left;
+                }
+                th {
+                    background-color: #282828;
+                }
+                tr:nth-child(even) {
+                    background-color: #1c1c1c;
+                }
+                th.groupheader {
+                    text-transform: capitalize;
+                }
+                tr:hover {
+                    background-color: #222;
+                }
+                a {
+                    text-decoration: none;
+                    color: #ddd;
+                    font-weight: bold;
+                }
+                a:hover {
+                    text-decoration: underline;
+                }
+                
+                .targettype {
+                    color: #888;
+                }
+                
+                .targetname {
+                    color: #ddd;
+                }
+                
+                .notimportant {
+                    color: #888;
+                    font-size: 85%;
+                }
+                
+                .running {
+                    color: green;
+                }
+                .stopped {
+                    color: red;
+                }
+                
+                .running:hover, .stopped:hover, .iconlink:hover {
+                    text-decoration: none;
+                }
+                
+                pre.log {
+                    white-space: pre-wrap;
+                }
+                .err {
+                    color: #e88;
+                }
+                .event {
+                    color: #888;
+                }
+                """.strip());
+
+    /**
+     * Runs start/stop/restart through the JSON API, fills in the last checks from it and keeps the
+     * time since them up to date, and reloads the list when a tunnel changes state.
+     */
+    private static final StaticResource SCRIPT = new StaticResource("/tunnellen.js", "text/javascript", """
+            document.addEventListener("click", e => {
+                const link = e.target.closest("a[data-action]");
+                if (!link) return;
+                e.preventDefault();
+                fetch(`/api/tunnels/${link.dataset.id}/${link.dataset.action}`, {method: "POST"});
+            });
+            const ago = () => document.querySelectorAll("time[data-since]").forEach(t =>
+                t.textContent = Math.max(0, Math.round((Date.now() - t.dataset.since) / 1000)) + " s");
+            // Checks are left out of the page, so it stays the same from one check to the next
+            const checks = () => fetch("/api/tunnels").then(r => r.json()).then(tunnels => {
+                tunnels.forEach(t => {
+                    const check = document.querySelector(`span[data-check="${t.id}"]`);
+                    if (check && t.lastCheck) {
+                        check.innerHTML = `<time data-since="${Date.parse(t.lastCheck.slice(0, 23))}"></time>`
+                            + (t.probeLatencyMillis != null ? ` ${t.probeLatencyMillis} ms` : "");
+                    }
+                });
+                ago();
+            });
+            checks();
+            setInterval(ago, 1000);
+            setInterval(checks, 5000);
+            let reload;
+            new EventSource("/events").addEventListener("state", () => {
+                clearTimeout(reload);
+                reload = setTimeout(() => location.reload(), 200);
+            });
+            """);
+
+    private static final Comparator<Tunnel> LIST_ORDER = Comparator.comparing(Tunnel::isStartOnStartup).reversed().thenComparing(Tunnel::getTarget).thenComparing(Tunnel::getContext);
+    // Tells the ETags of one run from those of the next
+    private static final String BOOT = Long.toString(System.currentTimeMillis(), 36);
+    private static final int MAX_CACHED_HOSTS = 8;
+    private static final Duration FOLLOW_TIMEOUT = Duration.ofSeconds(15);
+
+    /**
+     * A group of tunnels in list order. Tunnels in no configured group have a section of their
+     * own, without a title when there are no groups.
+     */
+    private record Section(String title, List<Tunnel> tunnels) {
+    }
+
+    /**
+     * The sections of the list, built once per registry version and configuration.
+     */
+    private record Layout(long version, Configuration config, List<Section> sections) {
+    }
+
+    /**
+     * A rendered row of the list, valid until its tunnel changes.
+     */
+    private record Row(long changed, String host, String html) {
+    }
+
+    /**
+     * A rendered list, encoded and compressed once and served until a tunnel or the registry
+     * changes.
+     */
+    private record Page(long version, long changes, Configuration config, byte[] bytes, byte[] gzipped, String tag) {
+    }
+
+    private volatile Configuration config;
+    private volatile Layout layout;
+    private final Map<Tunnel, Row> rows = new ConcurrentHashMap<>();
+    // By host, as links to http tunnels point to the host the list was asked for on
+    private final Map<String, Page> pages = new ConcurrentHashMap<>();
+    private final AtomicLong pageSerial = new AtomicLong();
+    private final TunnelRegistry registry;
     private HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Events events = new Events();
+    private final Consumer<Tunnel> stateListener = events::publish;
 
-    public Web(Configuration config) throws IOException, InterruptedException {
+    public Web(Configuration config, TunnelRegistry registry) throws IOException, InterruptedException {
         this.config = config;
+        this.registry = registry;
         try {
-            this.server = HttpServer.create(new InetSocketAddress(config.port()), 0);
+            this.server = HttpServer.create(new InetSocketAddress(config.port()), config.backlog());
         } catch (BindException e) {
             if (config.killProc() && System.getProperty("os.name").toLowerCase().contains("win")) {
                 killProcessUsingPort(config.port());
-                this.server = HttpServer.create(new InetSocketAddress(config.port()), 0);
+                this.server = HttpServer.create(new InetSocketAddress(config.port()), config.backlog());
             } else {
                 throw e;
             }
         }
+        // One virtual thread per request, so a slow request never holds up the others
+        this.server.setExecutor(executor);
         this.server.createContext("/", this::handleHttp);
+        this.server.createContext("/api/", this::handleApi);
+        this.server.createContext("/events", events::subscribe);
+    }
+
+    /**
+     * Takes on the settings that do not need a new server, like the groups and refresh interval.
+     */
+    public void setConfig(Configuration config) {
+        this.config = config;
     }
 
     public void start() {
+        Tunnel.addStateListener(stateListener);
         server.start();
     }
 
     public void stop(int delay) {
+        Tunnel.removeStateListener(stateListener);
+        events.close();
         server.stop(delay);
+        executor.shutdown();
+    }
+
+    private record ApiResponse(int status, String body) {
+    }
+
+    /**
+     * JSON API: GET /api/tunnels, GET /api/tunnels/{id} and POST /api/tunnels/{id}/{start|stop|restart}.
+     */
+    private void handleApi(HttpExchange httpExchange) throws IOException {
+        var method = httpExchange.getRequestMethod().toUpperCase();
+        log.info("Handling request. {} {}", method, httpExchange.getRequestURI());
+        var path = httpExchange.getRequestURI().getPath().split("/");
+
+        var response = api(method, path);
+        if (response.status() == 405) {
+            httpExchange.getResponseHeaders().set("Allow", path.length == 5 ? "POST" : "GET");
+        }
+        var body = response.body().getBytes(StandardCharsets.UTF_8);
+        httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+        httpExchange.getResponseHeaders().set("Cache-Control", "no-store");
+        httpExchange.sendResponseHeaders(response.status(), body.length);
+        try (var out = httpExchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private ApiResponse api(String method, String[] path) {
+        // path is ["", "api", "tunnels", id, action]
+        if (path.length < 3 || path.length > 5 || !path[2].equals("tunnels")) {
+            return new ApiResponse(404, Json.error("Not found"));
+        }
+        if (path.length == 3) {
+            return method.equals("GET") ? new ApiResponse(200, Json.tunnels(registry.all())) : new ApiResponse(405, Json.error("Method not allowed"));
+        }
+
+        var id = path[3];
+        var tunnel = registry.get(id);
+        if (tunnel.isEmpty()) {
+            return new ApiResponse(404, Json.error("No tunnel with id " + id));
+        }
+        if (path.length == 4) {
+            return method.equals("GET") ? new ApiResponse(200, Json.tunnel(tunnel.get())) : new ApiResponse(405, Json.error("Method not allowed"));
+        }
+
+        if (!method.equals("POST")) {
+            return new ApiResponse(405, Json.error("Method not allowed"));
+        }
+        switch (path[4]) {
+            case "start" -> Main.startTunnel(id);
+            case "stop" -> Main.stopTunnel(id);
+            case "restart" -> Main.restartTunnel(id);
+            default -> {
+                return new ApiResponse(404, Json.error("Unknown action " + path[4]));
+            }
+        }
+        return new ApiResponse(200, Json.tunnel(tunnel.get()));
     }
 
     private void handleHttp(HttpExchange httpExchange) throws IOException {
@@ -55,17 +293,33 @@ public class Web {
             return;
         }
         log.info("Handling request. {}", httpExchange.getRequestURI());
+        var path = httpExchange.getRequestURI().getPath();
+        if (path.equals(STYLE.getPath())) {
+            STYLE.serve(httpExchange);
+            return;
+        }
+        if (path.equals(SCRIPT.getPath())) {
+            SCRIPT.serve(httpExchange);
+            return;
+        }
         if (!httpExchange.getRequestMethod().equalsIgnoreCase("GET")) {
             httpExchange.sendResponseHeaders(405, 0);
             return;
         }
-        httpExchange.getResponseHeaders().set("Content-Type", "text/html");
+        if (path.equals("/list")) {
+            serveList(httpExchange);
+            return;
+        }
         var query = decodeQuery(httpExchange.getRequestURI().getQuery());
+        if (path.equals("/logs") && query.containsKey("follow")) {
+            followLog(httpExchange, query.get("id"));
+            return;
+        }
+        httpExchange.getResponseHeaders().set("Content-Type", "text/html");
 
         int responseCode = 200;
 
-        var response = switch (httpExchange.getRequestURI().getPath()) {
-            case "/list" -> listTunnels(httpExchange);
+        var response = switch (path) {
             case "/" -> index();
             case "/startTunnel" -> {
                 httpExchange.getResponseHeaders().set("Refresh", "0 url=/list");
@@ -85,11 +339,15 @@ public class Web {
                 httpExchange.getResponseHeaders().set("Refresh", "0 url=/list");
                 httpExchange.getResponseHeaders().set("Location", "/list");
                 responseCode = 302;
-                Main.stopTunnel(query.get("id"));
-                Main.startTunnel(query.get("id"));
+                Main.restartTunnel(query.get("id"));
                 yield header("Restarting tunnel") + "OK" + footer();
             }
-            case "/style.css" -> styles(httpExchange);
+            case "/metrics" -> {
+                httpExchange.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+                yield Metrics.render(registry.all());
+            }
+            case "/queries" -> queries(query.get("id"));
+            case "/logs" -> logs(query.get("id"));
             case "/intellij" -> {
                 httpExchange.getResponseHeaders().set("Content-Type", "text/plain");
 
@@ -100,9 +358,10 @@ public class Web {
             default -> null;
         };
         if (response != null) {
-            httpExchange.sendResponseHeaders(responseCode, response.getBytes().length);
+            var body = response.getBytes(StandardCharsets.UTF_8);
+            httpExchange.sendResponseHeaders(responseCode, body.length);
             try (var out = httpExchange.getResponseBody()) {
-                out.write(response.getBytes());
+                out.write(body);
                 out.flush();
             }
         } else {
@@ -125,32 +384,98 @@ public class Web {
                 .orElse(null);
     }
 
-    private String listTunnels(HttpExchange httpExchange) {
-        if (config.refreshInterval().toSeconds() > 0) {
-            httpExchange.getResponseHeaders().set("Refresh", "%d url=/list".formatted(config.refreshInterval().toSeconds()));
+    /**
+     * Serves the list from the page cache, with a 304 when the browser already has it.
+     */
+    private void serveList(HttpExchange httpExchange) throws IOException {
+        var page = listPage(getHost(httpExchange));
+        var gzip = StaticResource.acceptsGzip(httpExchange);
+        var etag = "\"" + page.tag() + (gzip ? "-gzip" : "") + "\"";
+        var headers = httpExchange.getResponseHeaders();
+        headers.set("Cache-Control", "no-cache");
+        headers.set("ETag", etag);
+        headers.set("Vary", "Accept-Encoding");
+        if (etag.equals(httpExchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            httpExchange.sendResponseHeaders(304, -1);
+            httpExchange.close();
+            return;
         }
+        headers.set("Content-Type", "text/html; charset=utf-8");
+        var body = page.bytes();
+        if (gzip) {
+            headers.set("Content-Encoding", "gzip");
+            body = page.gzipped();
+        }
+        httpExchange.sendResponseHeaders(200, body.length);
+        try (var out = httpExchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
 
-        var host = getHost(httpExchange);
-
-        var out = new StringBuilder();
-        out.append(header("Tunnels - Tunnellen") + "<table>\n<thead>\n<tr><th>Context</th><th>Target</th><th>Local port</th><th>State</th></tr>\n</thead>\n<tbody>\n");
-
-        config.groups().forEach(group -> {
-            out.append("<tr><th class=\"groupheader\" colspan=\"4\">%s</th></tr>\n".formatted(group));
-            out.append(config.portForwards().stream().filter(t -> t.getGroup().equals(group)).sorted(Comparator.comparing(Tunnel::isStartOnStartup).reversed().thenComparing(Tunnel::getTarget).thenComparing(Tunnel::getContext)).map(t -> tunnel(t, host)).collect(Collectors.joining("\n")));
-        });
+    private Page listPage(String host) {
+        var config = this.config;
+        // Read before rendering, so a change while rendering makes the next request render again
+        var snapshot = registry.snapshot();
+        var changes = Tunnel.changes();
+        var page = pages.get(host);
+        if (page != null && page.version() == snapshot.version() && page.changes() == changes && page.config() == config) {
+            return page;
+        }
+        var bytes = listTunnels(config, layout(config, snapshot), host).getBytes(StandardCharsets.UTF_8);
+        page = new Page(snapshot.version(), changes, config, bytes, StaticResource.gzip(bytes), "list-" + BOOT + "-" + pageSerial.incrementAndGet());
+        if (pages.size() >= MAX_CACHED_HOSTS && !pages.containsKey(host)) {
+            pages.clear();
+        }
+        pages.put(host, page);
+        return page;
+    }
 
-        var rest = config.portForwards().stream().filter(t -> config.groups().stream().noneMatch(g -> g.equals(t.getGroup()))).sorted(Comparator.comparing(Tunnel::isStartOnStartup).reversed().thenComparing(Tunnel::getTarget).thenComparing(Tunnel::getContext)).map(t -> tunnel(t, host)).collect(Collectors.joining("\n"));
-        if (!rest.isBlank()) {
-            if (!config.groups().isEmpty()) out.append("<tr><th class=\"groupheader\" colspan=\"4\">Other</th></tr>\n");
-            out.append(rest);
+    private Layout layout(Configuration config, TunnelRegistry.Snapshot snapshot) {
+        var layout = this.layout;
+        if (layout != null && layout.version() == snapshot.version() && layout.config() == config) {
+            return layout;
+        }
+        var sections = new ArrayList<Section>();
+        config.groups().forEach(group -> sections.add(new Section(group, snapshot.byGroup().getOrDefault(group, List.of()).stream().sorted(LIST_ORDER).toList())));
+        var groups = Set.copyOf(config.groups());
+        var rest = snapshot.tunnels().stream().filter(t -> !groups.contains(t.getGroup())).sorted(LIST_ORDER).toList();
+        if (!rest.isEmpty()) {
+            sections.add(new Section(config.groups().isEmpty() ? null : "Other", rest));
         }
+        rows.keySet().retainAll(snapshot.byId().values());
+        layout = new Layout(snapshot.version(), config, List.copyOf(sections));
+        this.layout = layout;
+        return layout;
+    }
 
-        out.append("\n</tbody>\n</table>\n" + footer());
+    private String listTunnels(Configuration config, Layout layout, String host) {
+        // Browsers with scripting follow /events instead of polling
+        var refresh = config.refreshInterval().toSeconds() > 0
+                ? "<noscript><meta http-equiv=\"refresh\" content=\"%d\"></noscript>\n".formatted(config.refreshInterval().toSeconds())
+                : "";
 
+        var out = new StringBuilder();
+        out.append(header("Tunnels - Tunnellen", refresh)).append("<table>\n<thead>\n<tr><th>Context</th><th>Target</th><th>Local port</th><th>State</th></tr>\n</thead>\n<tbody>\n");
+        for (var section : layout.sections()) {
+            if (section.title() != null) {
+                out.append("<tr><th class=\"groupheader\" colspan=\"4\">").append(section.title()).append("</th></tr>\n");
+            }
+            section.tunnels().forEach(t -> out.append(row(t, host)));
+        }
+        out.append("</tbody>\n</table>\n<script src=\"").append(SCRIPT.getUrl()).append("\"></script>\n").append(footer());
         return out.toString();
     }
 
+    private String row(Tunnel tun, String host) {
+        var changed = tun.getChanged();
+        var row = rows.get(tun);
+        if (row == null || row.changed() != changed || !row.host().equals(host)) {
+            row = new Row(changed, host, tunnel(tun, host));
+            rows.put(tun, row);
+        }
+        return row.html();
+    }
+
     private static String getHost(HttpExchange httpExchange) {
         return Optional.ofNullable(httpExchange.getRequestHeaders().getFirst("Host")).map(h -> h.split(":")[0]).orElse("127.0.0.1");
     }
@@ -186,36 +511,63 @@ public class Web {
     }
 
     private String actionIcons(Tunnel tun, String host) {
-        var startStop = tun.isRunning() ? """
-                <a href="/stopTunnel?id=%s" class="running" title="Stop tunnel">&#x23F9;</a>
-                <a href="/restartTunnel?id=%s" class="running" title="Restart tunnel">&#x27F3;</a>
-                <span class="notimportant">%s</span>
-                """.formatted(tun.getId(), tun.getId(), Optional.ofNullable(tun.getLastCheck()).filter(lc -> lc.isAfter(LocalDateTime.MIN)).map(lc -> Duration.between(lc, LocalDateTime.now()).toSeconds()).map(lc -> lc + " s").orElse("")) : """
-                <a href="/startTunnel?id=%s" class="stopped" title="Start tunnel">&#x23F5;</a>
+        var startStop = tun.isStarted() ? """
+                <a href="/stopTunnel?id=%1$s" data-action="stop" data-id="%1$s" class="running" title="Stop tunnel">&#x23F9;</a>
+                <a href="/restartTunnel?id=%1$s" data-action="restart" data-id="%1$s" class="running" title="Restart tunnel">&#x27F3;</a>
+                <span class="notimportant">%2$s</span>
+                """.formatted(tun.getId(), status(tun)) : """
+                <a href="/startTunnel?id=%1$s" data-action="start" data-id="%1$s" class="stopped" title="Start tunnel">&#x23F5;</a>
                 """.formatted(tun.getId());
 
         var db = tun.getType().filter(Tunnel.Type.DATABASE::equals).map(t -> """
                 <a href="/intellij?id=%s" target="_blank" class="iconlink" title="Generate IntelliJ Datasource">&#x1F5C2;</a>
                 """.formatted(tun.getId())).orElse("");
 
+        // Counts change with every query, so they are left to the page linked to
+        var queries = tun.getQueries().map(q -> "<a href=\"/queries?id=%s\" class=\"iconlink\" title=\"Query timings\">&#x23F1;</a>".formatted(tun.getId())).orElse("");
+
         var http = tun.getType().filter(Tunnel.Type.HTTP::equals).map(t -> "<a href=\"http://%s:%d\" class=\"iconlink\" target=\"_blank\">&#x1F517;</a>".formatted(host, tun.getLocalPort())).orElse("");
 
 
-        return startStop + db + http;
+        var logs = "<a href=\"/logs?id=%s\" class=\"iconlink\" title=\"Logs\">&#x1F4DC;</a>".formatted(tun.getId());
+
+        return startStop + db + queries + logs + http;
+    }
+
+    private String status(Tunnel tun) {
+        if (tun.getState() == Tunnel.State.BACKOFF || tun.getState() == Tunnel.State.FAILED) {
+            var circuit = tun.getCircuit();
+            // Waiting for the context rather than for the tunnel's own backoff
+            return switch (circuit.getState()) {
+                case CLOSED -> tun.getState().name().toLowerCase();
+                case OPEN -> "<span title=\"%d tunnels of %s waiting\">circuit open</span>%s".formatted(circuit.getWaiting(), html(tun.getContext()),
+                        circuit.getRetryAt().map(at -> ", retry at " + LocalDateTime.ofInstant(at, ZoneId.systemDefault()).toLocalTime().withNano(0)).orElse(""));
+                case HALF_OPEN -> "<span title=\"%d tunnels of %s waiting\">circuit half-open</span>".formatted(circuit.getWaiting(), html(tun.getContext()));
+            };
+        }
+        if (tun.getState() != Tunnel.State.RUNNING) {
+            return tun.getState().name().toLowerCase();
+        }
+        // Filled in by the script, checks don't change the row
+        return "<span data-check=\"%s\"></span>".formatted(tun.getId());
     }
 
     private String header(String title) {
+        return header(title, "");
+    }
+
+    private String header(String title, String head) {
         return """
                 <!doctype html>
                 <html>
                 <head>
                 <title>%s</title>
-                <link rel="stylesheet" href="/style.css">
+                <link rel="stylesheet" href="%s">
                 <meta name="viewport" content="width=device-width, initial-scale=1">
-                </head>
+                %s</head>
                 <body>
                 <main>
-                """.formatted(title);
+                """.formatted(title, STYLE.getUrl(), head);
     }
 
     private String footer() {
@@ -236,88 +588,94 @@ public class Web {
                footer();
     }
 
-    private String styles(HttpExchange httpExchange) {
-        httpExchange.getResponseHeaders().set("Content-Type", "text/css");
-        httpExchange.getResponseHeaders().set("Cache-Control", "max-age=300");
-        return """
-                html { margin: 0; padding: 0; }
-                body {
-                    font-family: Arial, sans-serif;
-                    font-size: 90%;
-                    margin: 0; padding: 0;
-                    background-color: #151515;
-                    color: #b0b0b0;
-                }
-                main {
-                    margin: 1rem;
-                    width: fit-content;
-                    block-size: fit-content;
-                
-                }
-                footer {
-                    margin: 1rem;
-                    color: #888;
-                    font-size: 75%;
-                    border-top: 1px solid #282828;
-                }
-                table {
-                    border-collapse: collapse;
-                }
-                th, td {
-                    border: 1px solid #444;
-                    padding: 8px;
-                    text-align: left;
-                }
-                th {
-                    background-color: #282828;
-                }
-                tr:nth-child(even) {
-                    background-color: #1c1c1c;
-                }
-                th.groupheader {
-                    text-transform: capitalize;
-                }
-                tr:hover {
-                    background-color: #222;
-                }
-                a {
-                    text-decoration: none;
-                    color: #ddd;
-                    font-weight: bold;
-                }
-                a:hover {
-                    text-decoration: underline;
-                }
-                
-                .targettype {
-                    color: #888;
-                }
-                
-                .targetname {
-                    color: #ddd;
-                }
-                
-                .notimportant {
-                    color: #888;
-                    font-size: 85%;
-                }
-                
-                .running {
-                    color: green;
-                }
-                .stopped {
-                    color: red;
-                }
-                
-                .running:hover, .stopped:hover, .iconlink:hover {
-                    text-decoration: none;
+
+
+    private String queries(String id) {
+        return registry.get(id).flatMap(t -> t.getQueries().map(q -> {
+            var latency = q.getLatency();
+            var traffic = t.getTraffic();
+            var out = new StringBuilder(header("Queries - Tunnellen"));
+            out.append("<h1>%s %s</h1>\n".formatted(html(t.getContext()), target(t)));
+            out.append("<table>\n<tbody>\n");
+            out.append("<tr><th>Queries</th><td>%d</td></tr>\n".formatted(q.getQueries()));
+            out.append("<tr><th>Errors</th><td>%d</td></tr>\n".formatted(q.getErrors()));
+            if (latency.getCount() > 0) {
+                out.append("<tr><th>Latency</th><td>p50 %d ms, p95 %d ms, p99 %d ms</td></tr>\n".formatted(
+                        latency.getQuantile(0.5).toMillis(), latency.getQuantile(0.95).toMillis(), latency.getQuantile(0.99).toMillis()));
+            }
+            out.append("<tr><th>Bytes in / out</th><td>%d / %d</td></tr>\n".formatted(traffic.getBytesIn(), traffic.getBytesOut()));
+            out.append("<tr><th>Slower than %d ms</th><td>%d</td></tr>\n".formatted(q.getSlowQuery().toMillis(), q.getSlow()));
+            out.append("</tbody>\n</table>\n");
+            var samples = q.getSamples();
+            if (!samples.isEmpty()) {
+                out.append("<h2>Recent slow queries</h2>\n<table>\n<thead>\n<tr><th>Time</th><th>Latency</th><th>Statement</th></tr>\n</thead>\n<tbody>\n");
+                samples.forEach(sample -> out.append("<tr><td>%s</td><td>%d ms</td><td><code>%s</code></td></tr>\n".formatted(
+                        sample.at().withNano(0), sample.latency().toMillis(), html(sample.statement()))));
+                out.append("</tbody>\n</table>\n");
+            }
+            return out.append("<p><a href=\"/list\">Back</a></p>\n").append(footer()).toString();
+        })).orElse(header("Queries - Tunnellen") + "Not found" + footer());
+    }
+
+    private String logs(String id) {
+        return registry.get(id).map(t -> {
+            var out = new StringBuilder(header("Logs - Tunnellen"));
+            out.append("<h1>%s %s</h1>\n".formatted(html(t.getContext()), target(t)));
+            out.append("<pre class=\"log\">\n");
+            t.getOutput().since(0).forEach(line -> out.append("<span class=\"%s\">%s</span>\n".formatted(
+                    line.stream().name().toLowerCase(), html(line.format()))));
+            out.append("</pre>\n");
+            return out.append("<p><a href=\"/logs?id=%s&amp;follow=true\">Follow</a> <a href=\"/list\">Back</a></p>\n".formatted(t.getId())).append(footer()).toString();
+        }).orElse(header("Logs - Tunnellen") + "Not found" + footer());
+    }
+
+    /**
+     * Streams the log of a tunnel as plain text, the kept lines first and then every new line as
+     * it is written, until the client goes away, the tunnel is replaced or the server stops. A
+     * quiet log gets an empty line every {@link #FOLLOW_TIMEOUT}, which is how a client that went
+     * away is noticed.
+     */
+    private void followLog(HttpExchange httpExchange, String id) throws IOException {
+        var tunnel = registry.get(id).orElse(null);
+        if (tunnel == null) {
+            httpExchange.sendResponseHeaders(404, 0);
+            return;
+        }
+        httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        httpExchange.getResponseHeaders().set("Cache-Control", "no-store");
+        // Browsers show the lines as they arrive instead of waiting to sniff the content type
+        httpExchange.getResponseHeaders().set("X-Content-Type-Options", "nosniff");
+        httpExchange.sendResponseHeaders(200, 0);
+        var output = tunnel.getOutput();
+        var next = 0L;
+        try (var out = httpExchange.getResponseBody()) {
+            while (!executor.isShutdown() && registry.get(id).filter(tunnel::equals).isPresent()) {
+                var lines = output.await(next, FOLLOW_TIMEOUT);
+                if (lines.isEmpty()) {
+                    // An empty flush sends nothing, so a closed connection would go unnoticed
+                    out.write('\n');
+                    out.flush();
+                    continue;
                 }
-                """.strip();
+                var text = new StringBuilder();
+                lines.forEach(line -> text.append(line.format()).append('\n'));
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                next = lines.getLast().number() + 1;
+            }
+        } catch (IOException e) {
+            log.debug("Log follower {} went away: {}", httpExchange.getRemoteAddress(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
+    private static String html(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
 
     private String intellij(String id, String host) {
-        return config.portForwards().stream().filter(t -> t.getId().equals(id) && t.getType().isPresent() && t.getType().get() == Tunnel.Type.DATABASE && t.getDatabase() != null).findFirst().map(t -> {
+        return registry.get(id).filter(t -> t.getType().isPresent() && t.getType().get() == Tunnel.Type.DATABASE && t.getDatabase() != null).map(t -> {
             var db = t.getDatabase();
             return generateDatasource(t.getGroup(), db, host, t.getLocalPort());
         }).orElse("Not found");
@@ -0,0 +1,431 @@
+package dev.rambris.tunnellen;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Follows the database protocol of one relayed connection and times its queries, without
+ * touching the bytes. The relay hands over what it has read from each side; messages are framed
+ * as they go by and only the start of the bodies that name a statement is kept. Once a connection
+ * switches to TLS or compression, or anything else can't be followed, the observer goes quiet.
+ * <p>
+ * Only called on the reactor thread.
+ */
+abstract class WireObserver {
+    // Enough for the start of a statement, longer ones are cut when they are sampled anyway
+    private static final int CAPTURE = 4096;
+    private static final int MAX_PREPARED = 256;
+
+    final QueryStats stats;
+    private final Framer client = new Framer(true);
+    private final Framer server = new Framer(false);
+    private boolean disabled = false;
+
+    private WireObserver(QueryStats stats) {
+        this.stats = stats;
+    }
+
+    static WireObserver of(Database.Kind kind, QueryStats stats) {
+        return switch (kind) {
+            case POSTGRESQL -> new Postgres(stats);
+            case MYSQL -> new MySql(stats);
+        };
+    }
+
+    /**
+     * Bytes read from the client, at an offset in the buffer. The buffer isn't modified.
+     */
+    void fromClient(ByteBuffer buffer, int offset, int length) {
+        feed(client, buffer, offset, length);
+    }
+
+    /**
+     * Bytes read from the server, at an offset in the buffer. The buffer isn't modified.
+     */
+    void fromServer(ByteBuffer buffer, int offset, int length) {
+        feed(server, buffer, offset, length);
+    }
+
+    private void feed(Framer framer, ByteBuffer buffer, int offset, int length) {
+        if (disabled) {
+            return;
+        }
+        try {
+            framer.feed(buffer, offset, length);
+        } catch (RuntimeException e) {
+            // Lost track of the protocol, the connection itself is unaffected
+            disabled = true;
+        }
+    }
+
+    void disable() {
+        disabled = true;
+    }
+
+    /**
+     * Length of the header of the next message from a side.
+     */
+    abstract int headerLength(boolean fromClient);
+
+    abstract long bodyLength(boolean fromClient, byte[] header);
+
+    /**
+     * Whether the start of the body of the message is needed.
+     */
+    abstract boolean capture(boolean fromClient, byte[] header);
+
+    /**
+     * A complete message. Only the first {@code captured} bytes of the body are available, and
+     * only if asked for.
+     */
+    abstract void message(boolean fromClient, byte[] header, byte[] body, int captured);
+
+    /**
+     * Splits one direction of the stream into messages.
+     */
+    private class Framer {
+        private final boolean fromClient;
+        private final byte[] header = new byte[8];
+        private final byte[] body = new byte[CAPTURE];
+        private int headerLength = -1;
+        private int headerFill;
+        private long remaining;
+        private boolean capturing;
+        private int captured;
+
+        Framer(boolean fromClient) {
+            this.fromClient = fromClient;
+        }
+
+        void feed(ByteBuffer buffer, int offset, int length) {
+            int i = offset;
+            int end = offset + length;
+            while (i < end && !disabled) {
+                if (headerLength < 0) {
+                    headerLength = headerLength(fromClient);
+                    headerFill = 0;
+                }
+                if (headerFill < headerLength) {
+                    header[headerFill++] = buffer.get(i++);
+                    if (headerFill < headerLength) {
+                        continue;
+                    }
+                    remaining = bodyLength(fromClient, header);
+                    if (remaining < 0) {
+                        throw new IllegalStateException("Bad message length " + remaining);
+                    }
+                    capturing = capture(fromClient, header);
+                    captured = 0;
+                    if (remaining > 0) {
+                        continue;
+                    }
+                } else {
+                    var n = (int) Math.min(remaining, end - i);
+                    if (capturing) {
+                        var c = Math.min(n, CAPTURE - captured);
+                        buffer.get(i, body, captured, c);
+                        captured += c;
+                    }
+                    i += n;
+                    remaining -= n;
+                    if (remaining > 0) {
+                        continue;
+                    }
+                }
+                headerLength = -1;
+                message(fromClient, header, body, capturing ? captured : 0);
+            }
+        }
+    }
+
+    static <K> Map<K, String> prepared() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, String> eldest) {
+                return size() > MAX_PREPARED;
+            }
+        };
+    }
+
+    /**
+     * A zero terminated string starting at an offset, or what was captured of it.
+     */
+    static String cstring(byte[] body, int offset, int captured) {
+        int end = offset;
+        while (end < captured && body[end] != 0) {
+            end++;
+        }
+        return new String(body, offset, Math.max(0, end - offset), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * PostgreSQL: the client's Sync and simple Query messages are each answered by one
+     * ReadyForQuery, so the time between them is the time of the query, result rows included.
+     * Pipelined requests are matched up in order.
+     */
+    private static final class Postgres extends WireObserver {
+        private static final int SSL_REQUEST = 80877103;
+        private static final int GSSENC_REQUEST = 80877104;
+        private static final int PROTOCOL_3 = 3;
+        private static final int MAX_PENDING = 1024;
+
+        /**
+         * A request waiting for its ReadyForQuery.
+         */
+        private static final class Pending {
+            final long start;
+            final String statement;
+            final boolean query;
+            boolean failed = false;
+
+            Pending(long start, String statement, boolean query) {
+                this.start = start;
+                this.statement = statement;
+                this.query = query;
+            }
+        }
+
+        // The client's first messages have no type byte
+        private boolean startup = true;
+        // Encryption requests are answered with a single byte
+        private boolean encryptionAnswer = false;
+        private final Map<String, String> prepared = prepared();
+        private final Deque<Pending> pending = new ArrayDeque<>();
+        private long batchStart = -1;
+        private String statement;
+        private boolean executed = false;
+
+        Postgres(QueryStats stats) {
+            super(stats);
+        }
+
+        @Override
+        int headerLength(boolean fromClient) {
+            if (fromClient) {
+                return startup ? 4 : 5;
+            }
+            return encryptionAnswer ? 1 : 5;
+        }
+
+        @Override
+        long bodyLength(boolean fromClient, byte[] header) {
+            if (fromClient && startup) {
+                return int32(header, 0) - 4;
+            }
+            if (!fromClient && encryptionAnswer) {
+                return 0;
+            }
+            return int32(header, 1) - 4;
+        }
+
+        @Override
+        boolean capture(boolean fromClient, byte[] header) {
+            return fromClient && (startup || header[0] == 'Q' || header[0] == 'P' || header[0] == 'B');
+        }
+
+        @Override
+        void message(boolean fromClient, byte[] header, byte[] body, int captured) {
+            if (fromClient && startup) {
+                var code = captured >= 4 ? int32(body, 0) : 0;
+                if (code == SSL_REQUEST || code == GSSENC_REQUEST) {
+                    encryptionAnswer = true;
+                } else if (code >> 16 == PROTOCOL_3) {
+                    startup = false;
+                } else {
+                    // A cancel request, nothing to observe
+                    disable();
+                }
+            } else if (!fromClient && encryptionAnswer) {
+                encryptionAnswer = false;
+                if (header[0] != 'N') {
+                    disable();
+                }
+            } else if (fromClient) {
+                fromClient(header[0], body, captured);
+            } else {
+                fromServer(header[0]);
+            }
+        }
+
+        private void fromClient(byte type, byte[] body, int captured) {
+            switch (type) {
+                case 'Q' -> queue(new Pending(System.nanoTime(), cstring(body, 0, captured), true));
+                case 'P' -> {
+                    begin();
+                    var name = cstring(body, 0, captured);
+                    statement = cstring(body, name.getBytes(StandardCharsets.UTF_8).length + 1, captured);
+                    prepared.put(name, statement);
+                }
+                case 'B' -> {
+                    begin();
+                    var portal = cstring(body, 0, captured);
+                    statement = prepared.get(cstring(body, portal.getBytes(StandardCharsets.UTF_8).length + 1, captured));
+                }
+                case 'E' -> {
+                    begin();
+                    executed = true;
+                }
+                case 'D', 'C', 'H' -> begin();
+                case 'S' -> {
+                    begin();
+                    queue(new Pending(batchStart, executed ? statement : null, executed));
+                    batchStart = -1;
+                    executed = false;
+                }
+                case 'F' -> queue(new Pending(System.nanoTime(), null, false));
+                default -> {
+                    // Copy data, password messages and the like
+                }
+            }
+        }
+
+        private void fromServer(byte type) {
+            if (type == 'E' && !pending.isEmpty()) {
+                pending.peekFirst().failed = true;
+            } else if (type == 'Z') {
+                var done = pending.pollFirst();
+                if (done != null && done.query) {
+                    stats.record(System.nanoTime() - done.start, done.statement, done.failed);
+                }
+            }
+        }
+
+        /**
+         * An extended query message, the batch is timed from the first one.
+         */
+        private void begin() {
+            if (batchStart < 0) {
+                batchStart = System.nanoTime();
+            }
+        }
+
+        private void queue(Pending request) {
+            if (pending.size() >= MAX_PENDING) {
+                disable();
+                return;
+            }
+            pending.addLast(request);
+        }
+
+        private static int int32(byte[] b, int offset) {
+            return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+        }
+    }
+
+    /**
+     * MySQL: one command at a time, timed until the first packet of the response. Where a result
+     * set ends depends on capabilities negotiated in the handshake, so rows aren't included.
+     */
+    private static final class MySql extends WireObserver {
+        private static final int CLIENT_COMPRESS = 0x20;
+        private static final int CLIENT_SSL = 0x800;
+        private static final int CLIENT_QUERY_ATTRIBUTES = 1 << 27;
+        private static final int COM_QUIT = 0x01;
+        private static final int COM_QUERY = 0x03;
+        private static final int COM_STMT_PREPARE = 0x16;
+        private static final int COM_STMT_EXECUTE = 0x17;
+        private static final int COM_STMT_SEND_LONG_DATA = 0x18;
+        private static final int COM_STMT_CLOSE = 0x19;
+
+        private boolean handshake = true;
+        private int capabilities = 0;
+        private final Map<Integer, String> prepared = prepared();
+        private long start = -1;
+        private String statement;
+        private boolean query;
+        private boolean prepare;
+
+        MySql(QueryStats stats) {
+            super(stats);
+        }
+
+        @Override
+        int headerLength(boolean fromClient) {
+            return 4;
+        }
+
+        @Override
+        long bodyLength(boolean fromClient, byte[] header) {
+            return (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16;
+        }
+
+        @Override
+        boolean capture(boolean fromClient, byte[] header) {
+            // Commands start a sequence and responses continue it
+            return fromClient || (start >= 0 && header[3] == 1);
+        }
+
+        @Override
+        void message(boolean fromClient, byte[] header, byte[] body, int captured) {
+            var sequence = header[3] & 0xff;
+            if (fromClient) {
+                if (handshake && sequence == 1 && captured >= 4) {
+                    handshake = false;
+                    capabilities = int32(body, 0);
+                    if ((capabilities & (CLIENT_SSL | CLIENT_COMPRESS)) != 0) {
+                        disable();
+                    }
+                } else if (sequence == 0 && captured >= 1) {
+                    handshake = false;
+                    command(body, captured);
+                }
+            } else if (start >= 0 && sequence == 1 && captured >= 1) {
+                var first = body[0] & 0xff;
+                if (prepare && first == 0 && captured >= 5) {
+                    prepared.put(int32(body, 1), statement);
+                }
+                if (query) {
+                    stats.record(System.nanoTime() - start, statement, first == 0xff);
+                }
+                start = -1;
+            }
+        }
+
+        private void command(byte[] body, int captured) {
+            switch (body[0] & 0xff) {
+                case COM_QUERY -> begin(queryText(body, captured), true, false);
+                case COM_STMT_PREPARE -> begin(new String(body, 1, captured - 1, StandardCharsets.UTF_8), false, true);
+                case COM_STMT_EXECUTE -> begin(captured >= 5 ? prepared.get(int32(body, 1)) : null, true, false);
+                case COM_STMT_CLOSE -> {
+                    if (captured >= 5) {
+                        prepared.remove(int32(body, 1));
+                    }
+                    start = -1;
+                }
+                // No response to these
+                case COM_STMT_SEND_LONG_DATA, COM_QUIT -> start = -1;
+                default -> begin(null, false, false);
+            }
+        }
+
+        private void begin(String statement, boolean query, boolean prepare) {
+            this.start = System.nanoTime();
+            this.statement = statement;
+            this.query = query;
+            this.prepare = prepare;
+        }
+
+        /**
+         * The statement of a COM_QUERY, after the query attributes if there are any.
+         */
+        private String queryText(byte[] body, int captured) {
+            var offset = 1;
+            if ((capabilities & CLIENT_QUERY_ATTRIBUTES) != 0) {
+                // Parameter count and parameter set count, each a one byte integer when zero
+                if (captured < 3 || body[1] != 0) {
+                    return null;
+                }
+                offset = 3;
+            }
+            return new String(body, offset, Math.max(0, captured - offset), StandardCharsets.UTF_8);
+        }
+
+        private static int int32(byte[] b, int offset) {
+            return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+        }
+    }
+}
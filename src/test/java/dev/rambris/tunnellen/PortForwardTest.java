@@ -0,0 +1,303 @@
+package dev.rambris.tunnellen;
+
+import ch.qos.logback.classic.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the native backend against a stub apiserver that speaks the v4.channel.k8s.io port-forward
+ * protocol. What the stub does depends on the pod port asked for.
+ */
+class PortForwardTest {
+    private static final String CONTEXT = "stub";
+    private static final Logger log = (Logger) LoggerFactory.getLogger(PortForwardTest.class);
+    // Echoes the data channel, after port prefixes sent in frames of their own
+    private static final int ECHO = 80;
+    // Reports an error on the error channel
+    private static final int ERROR = 81;
+    // Greets with the data channel's port prefix and data in the same frame, then echoes
+    private static final int GREETING = 82;
+    // Closes the stream right after the port prefixes
+    private static final int CLOSE = 83;
+
+    private static StubApiServer apiserver;
+
+    @BeforeAll
+    static void startApiserver() throws IOException {
+        apiserver = new StubApiServer();
+        var kubeconfig = Path.of(System.getenv("KUBECONFIG"));
+        Files.createDirectories(kubeconfig.getParent());
+        Files.writeString(kubeconfig, """
+                apiVersion: v1
+                kind: Config
+                clusters:
+                  - name: stub
+                    cluster:
+                      server: http://127.0.0.1:%d
+                users:
+                  - name: stub
+                    user:
+                      token: secret
+                contexts:
+                  - name: %s
+                    context:
+                      cluster: stub
+                      user: stub
+                """.formatted(apiserver.port(), CONTEXT));
+    }
+
+    @AfterAll
+    static void stopApiserver() throws IOException {
+        apiserver.close();
+    }
+
+    @Test
+    void relaysDataWithoutPortPrefixes() throws Exception {
+        apiserver.requests.clear();
+        var forward = forward(ECHO);
+        try (var socket = connect(forward.open())) {
+            socket.getOutputStream().write("hello".getBytes(StandardCharsets.UTF_8));
+            assertEquals("hello", read(socket.getInputStream(), 5));
+        } finally {
+            forward.close();
+        }
+        var request = apiserver.requests.take();
+        assertTrue(request.contains("/api/v1/namespaces/default/pods/pod/portforward?ports=" + ECHO), request);
+        assertTrue(request.toLowerCase().contains("authorization: bearer secret"), request);
+    }
+
+    @Test
+    void stripsPortPrefixSharingAFrameWithData() throws Exception {
+        var forward = forward(GREETING);
+        try (var socket = connect(forward.open())) {
+            assertEquals("hi", read(socket.getInputStream(), 2));
+            socket.getOutputStream().write("there".getBytes(StandardCharsets.UTF_8));
+            assertEquals("there", read(socket.getInputStream(), 5));
+        } finally {
+            forward.close();
+        }
+    }
+
+    @Test
+    void passesOnWhatThePodSendsAfterTheClientIsDone() throws Exception {
+        var forward = forward(ECHO);
+        try (var socket = connect(forward.open())) {
+            socket.getOutputStream().write("last".getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+            // The stub answers the close with a parting line before closing too
+            assertArrayEquals("lastbye".getBytes(StandardCharsets.UTF_8), socket.getInputStream().readAllBytes());
+        } finally {
+            forward.close();
+        }
+    }
+
+    @Test
+    void closesTheConnectionOnAnError() throws Exception {
+        var forward = forward(ERROR);
+        try (var socket = connect(forward.open())) {
+            assertArrayEquals(new byte[0], socket.getInputStream().readAllBytes());
+        } finally {
+            forward.close();
+        }
+    }
+
+    @Test
+    void closesTheConnectionWhenThePodDoes() throws Exception {
+        var forward = forward(CLOSE);
+        try (var socket = connect(forward.open())) {
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            forward.close();
+        }
+    }
+
+    private static PortForward forward(int port) {
+        return PortForward.toPod(log, CONTEXT, "default", new KubeClient.Endpoint("pod", port), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static String read(InputStream in, int length) throws IOException {
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Accepts WebSocket upgrades of port-forward requests and plays the pod's part, one stream
+     * per connection.
+     */
+    private static class StubApiServer implements AutoCloseable {
+        private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+        private static final Pattern PORTS = Pattern.compile("ports=(\\d+)");
+        private static final int BINARY = 2;
+        private static final int CLOSE_FRAME = 8;
+
+        private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+
+        StubApiServer() throws IOException {
+            Thread.ofVirtual().start(this::accept);
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    var socket = server.accept();
+                    Thread.ofVirtual().start(() -> serve(socket));
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                var in = new DataInputStream(socket.getInputStream());
+                var out = socket.getOutputStream();
+                var request = head(in);
+                requests.add(request);
+                var headers = headers(request);
+                var matcher = PORTS.matcher(request);
+                matcher.find();
+                var port = Integer.parseInt(matcher.group(1));
+                out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                           + "Upgrade: websocket\r\n"
+                           + "Connection: Upgrade\r\n"
+                           + "Sec-WebSocket-Accept: " + accept(headers.get("sec-websocket-key")) + "\r\n"
+                           + "Sec-WebSocket-Protocol: v4.channel.k8s.io\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+
+                var prefix = new byte[]{(byte) port, (byte) (port >> 8)};
+                if (port == GREETING) {
+                    write(out, BINARY, channel(0, prefix, "hi".getBytes(StandardCharsets.UTF_8)));
+                } else {
+                    write(out, BINARY, channel(0, prefix, new byte[0]));
+                }
+                write(out, BINARY, channel(1, prefix, new byte[0]));
+                if (port == ERROR) {
+                    write(out, BINARY, channel(1, new byte[0], "error forwarding port 81: connection refused".getBytes(StandardCharsets.UTF_8)));
+                } else if (port == CLOSE) {
+                    write(out, CLOSE_FRAME, new byte[]{0x03, (byte) 0xe8});
+                }
+                echo(in, out);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                // The forward went away
+            }
+        }
+
+        private static void echo(DataInputStream in, OutputStream out) throws IOException {
+            while (true) {
+                var first = in.readUnsignedByte();
+                var second = in.readUnsignedByte();
+                long length = second & 0x7f;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                var mask = (second & 0x80) != 0 ? in.readNBytes(4) : null;
+                var payload = in.readNBytes((int) length);
+                for (int i = 0; mask != null && i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+                switch (first & 0x0f) {
+                    case BINARY -> write(out, BINARY, payload);
+                    case CLOSE_FRAME -> {
+                        write(out, BINARY, channel(0, new byte[0], "bye".getBytes(StandardCharsets.UTF_8)));
+                        write(out, CLOSE_FRAME, payload);
+                        return;
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        private static byte[] channel(int channel, byte[] prefix, byte[] data) {
+            var frame = new ByteArrayOutputStream();
+            frame.write(channel);
+            frame.writeBytes(prefix);
+            frame.writeBytes(data);
+            return frame.toByteArray();
+        }
+
+        private static void write(OutputStream out, int opcode, byte[] payload) throws IOException {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else {
+                out.write(126);
+                out.write(payload.length >> 8);
+                out.write(payload.length);
+            }
+            out.write(payload);
+            out.flush();
+        }
+
+        private static String head(InputStream in) throws IOException {
+            var head = new ByteArrayOutputStream();
+            while (!head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+                var b = in.read();
+                if (b < 0) {
+                    throw new IOException("Closed in the middle of the request");
+                }
+                head.write(b);
+            }
+            return head.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        private static Map<String, String> headers(String head) {
+            var headers = new HashMap<String, String>();
+            for (var line : head.split("\r\n")) {
+                var colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            return headers;
+        }
+
+        private static String accept(String key) throws NoSuchAlgorithmException {
+            var sha1 = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(sha1);
+        }
+    }
+}